@@ -0,0 +1,66 @@
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size bitset whose bits are set with compare-and-set, so any number
+ * of threads can set and read bits without taking a lock. Bits are never
+ * cleared. The number of set bits is kept alongside, reading it is a
+ * single volatile read.
+ */
+class AtomicBitSet {
+	private final int numBits;
+	private final AtomicLongArray words;
+	private final AtomicInteger cardinality = new AtomicInteger();
+
+	public AtomicBitSet(int numBits) {
+		this.numBits = numBits;
+		this.words = new AtomicLongArray((numBits + 63) / 64);
+	}
+
+	public int size() {
+		return numBits;
+	}
+
+	public boolean get(int bitIndex) {
+		return 0 != (words.get(bitIndex >>> 6) & (1L << bitIndex));
+	}
+
+	// returns true if the bit was not set before
+	public boolean set(int bitIndex) {
+		int wordIndex = bitIndex >>> 6;
+		long mask = 1L << bitIndex;
+		while(true) {
+			long word = words.get(wordIndex);
+			if(0 != (word & mask)) {
+				return false;
+			}
+			if(words.compareAndSet(wordIndex, word, word | mask)) {
+				cardinality.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	public void or(BitSet bits) {
+		for(int i = bits.nextSetBit(0); i >= 0 && i < numBits; i = bits.nextSetBit(i+1)) {
+			set(i);
+		}
+	}
+
+	public int cardinality() {
+		return cardinality.get();
+	}
+
+	/**
+	 * Copy of the bits. Bits set while copying may or may not be in it, but
+	 * every bit set before the call is.
+	 */
+	public BitSet toBitSet() {
+		long[] copy = new long[words.length()];
+		for(int i=0; i<copy.length; i++) {
+			copy[i] = words.get(i);
+		}
+		return BitSet.valueOf(copy);
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * CHUNK_SIZE=AUTO: about targetNumChunks chunks per file, so the chunk
+ * count and per chunk overhead (requests, manifest hashes, HAVE) do not
+ * grow with the file, but at least minChunksPerClient chunks for every
+ * client, so small files still spread over the swarm. Chunk sizes are
+ * powers of two between minChunkSize and maxChunkSize; the bounds win over
+ * both targets.
+ */
+class AutoChunkSize implements ChunkSizePolicy {
+	private int minChunkSize;
+	private int maxChunkSize;
+	private int targetNumChunks;
+	private int minChunksPerClient;
+
+	public AutoChunkSize(int minChunkSize, int maxChunkSize, int targetNumChunks, int minChunksPerClient) {
+		this.minChunkSize = minChunkSize;
+		this.maxChunkSize = maxChunkSize;
+		this.targetNumChunks = targetNumChunks;
+		this.minChunksPerClient = minChunksPerClient;
+	}
+
+	public int getChunkSize(long fileSize, int numClients) {
+		long chunkSize = Long.highestOneBit(Math.max(1, (fileSize + targetNumChunks - 1) / targetNumChunks));
+		if(chunkSize * targetNumChunks < fileSize) {
+			chunkSize *= 2;
+		}
+		long minNumChunks = (long) numClients * minChunksPerClient;
+		while(chunkSize > minChunkSize && fileSize / chunkSize < minNumChunks) {
+			chunkSize /= 2;
+		}
+		return (int) Math.max(minChunkSize, Math.min(maxChunkSize, chunkSize));
+	}
+}
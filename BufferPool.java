@@ -0,0 +1,181 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded pool of direct buffers, so connections and chunk transfers reuse
+ * buffers instead of allocating new ones. At most maxIdle buffers are kept
+ * between uses, a buffer released while the pool is full is left to the GC.
+ *
+ * The pool only holds weak references to lent buffers. A buffer that is
+ * garbage collected without being released was leaked; this is reported
+ * and counted on the next acquire. Releasing a buffer the pool did not lend
+ * does nothing, so owners can release whatever buffer they end up with.
+ *
+ * The counts are Metrics gauges named buffers_<name>_hits, _misses,
+ * _in_use, _idle and _leaked.
+ */
+class BufferPool {
+	private String name;
+	private int maxIdle;
+	private Deque<ByteBuffer> idle = new ArrayDeque<ByteBuffer>();
+	// lent buffers by identity hash code, ByteBuffer.hashCode depends on the content
+	private Map<Integer, List<Loan>> loans = new HashMap<Integer, List<Loan>>();
+	private ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+	private long hits;
+	private long misses;
+	private long leaks;
+	private int lent;
+
+	private static class Loan extends WeakReference<ByteBuffer> {
+		private int identity;
+		private int capacity;
+
+		public Loan(ByteBuffer buff, ReferenceQueue<ByteBuffer> queue) {
+			super(buff, queue);
+			this.identity = System.identityHashCode(buff);
+			this.capacity = buff.capacity();
+		}
+	}
+
+	public BufferPool(String name, int maxIdle) {
+		this.name = name;
+		this.maxIdle = maxIdle;
+		String prefix = "buffers_" + name + "_";
+		Metrics.gauge(prefix + "hits", new Metrics.Gauge() {
+			public long get() {
+				return getHits();
+			}
+		});
+		Metrics.gauge(prefix + "misses", new Metrics.Gauge() {
+			public long get() {
+				return getMisses();
+			}
+		});
+		Metrics.gauge(prefix + "in_use", new Metrics.Gauge() {
+			public long get() {
+				return getLent();
+			}
+		});
+		Metrics.gauge(prefix + "idle", new Metrics.Gauge() {
+			public long get() {
+				return getIdle();
+			}
+		});
+		Metrics.gauge(prefix + "leaked", new Metrics.Gauge() {
+			public long get() {
+				return getLeaks();
+			}
+		});
+	}
+
+	/**
+	 * Returns a cleared buffer with at least the given capacity and its
+	 * limit set to capacity. Idle buffers that are too small are dropped.
+	 */
+	public synchronized ByteBuffer acquire(int capacity) {
+		expungeLeaks();
+		ByteBuffer buff = null;
+		Iterator<ByteBuffer> it = idle.iterator();
+		while(it.hasNext() && null == buff) {
+			ByteBuffer candidate = it.next();
+			it.remove();
+			if(candidate.capacity() >= capacity) {
+				buff = candidate;
+			}
+		}
+		if(null == buff) {
+			misses++;
+			buff = ByteBuffer.allocateDirect(capacity);
+		} else {
+			hits++;
+		}
+
+		Loan loan = new Loan(buff, collected);
+		List<Loan> sameHash = loans.get(loan.identity);
+		if(null == sameHash) {
+			sameHash = new ArrayList<Loan>(1);
+			loans.put(loan.identity, sameHash);
+		}
+		sameHash.add(loan);
+		lent++;
+
+		buff.clear();
+		buff.limit(capacity);
+		return buff;
+	}
+
+	public synchronized void release(ByteBuffer buff) {
+		if(null == buff) {
+			return;
+		}
+		int identity = System.identityHashCode(buff);
+		List<Loan> sameHash = loans.get(identity);
+		if(null == sameHash) {
+			return;
+		}
+		for(Iterator<Loan> it = sameHash.iterator(); it.hasNext(); ) {
+			Loan loan = it.next();
+			if(buff == loan.get()) {
+				it.remove();
+				loan.clear();
+				if(sameHash.isEmpty()) {
+					loans.remove(identity);
+				}
+				lent--;
+				if(idle.size() < maxIdle) {
+					idle.push(buff);
+				}
+				return;
+			}
+		}
+	}
+
+	private void expungeLeaks() {
+		Loan loan = null;
+		while(null != (loan = (Loan) collected.poll())) {
+			List<Loan> sameHash = loans.get(loan.identity);
+			if(null == sameHash || !sameHash.remove(loan)) {
+				continue;
+			}
+			if(sameHash.isEmpty()) {
+				loans.remove(loan.identity);
+			}
+			lent--;
+			leaks++;
+			System.err.println("Buffer of " + loan.capacity + " bytes from the " + name + " buffer pool was never released");
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getLeaks() {
+		return leaks;
+	}
+
+	// buffers currently lent out
+	public synchronized int getLent() {
+		return lent;
+	}
+
+	public synchronized int getIdle() {
+		return idle.size();
+	}
+
+	public synchronized String toString() {
+		return name + " buffers: " + hits + " hits, " + misses + " misses, " + lent + " in use, " + idle.size() + " idle, " + leaks + " leaked";
+	}
+}
@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tit-for-tat choking of upload neighbors. At most numSlots upload neighbors
+ * are served at a time, the others are choked: their requests wait until
+ * they get a slot. Every interval ms the slots go to the neighbors we
+ * received the most bytes from during the last interval, but one slot goes
+ * to a random other neighbor (optimistic unchoke), so that new neighbors
+ * get the chance to start giving back. A neighbor that connects while a
+ * slot is free gets it right away instead of waiting for the next round.
+ *
+ * Neighbors are known by client id, 0 for neighbors that did not tell it;
+ * those are never choked. Once the download is complete nobody gives back
+ * anymore and every neighbor is served.
+ */
+class Choker {
+	private int numSlots;
+	private long interval;
+	private ChunkState chunkState;
+	// bytes received from each download neighbor during this interval, by client id
+	private Map<Integer, Long> received = new HashMap<Integer, Long>();
+	private Set<Integer> unchoked = new HashSet<Integer>();
+	private long nextRound;
+
+	public Choker(int numSlots, long interval, ChunkState chunkState) {
+		this.numSlots = numSlots;
+		this.interval = interval;
+		this.chunkState = chunkState;
+	}
+
+	// counts bytes received from a download neighbor
+	public synchronized void received(int clientId, int bytes) {
+		Long total = received.get(clientId);
+		received.put(clientId, (null == total ? 0 : total) + bytes);
+	}
+
+	/**
+	 * Whether the upload neighbor with clientId may be served now. Slots are
+	 * handed out again among neighbors when the interval is over, free slots
+	 * go to whoever asks first.
+	 */
+	public synchronized boolean isUnchoked(int clientId, Collection<Integer> neighbors) {
+		if(0 == clientId || chunkState.isComplete()) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		if(now >= nextRound) {
+			rechoke(neighbors);
+			nextRound = now + interval;
+		}
+		// slots of neighbors that left are free
+		unchoked.retainAll(neighbors);
+		if(!unchoked.contains(clientId) && unchoked.size() < numSlots) {
+			unchoked.add(clientId);
+			System.out.println("UPLOAD: Unchoked upload neighbors " + unchoked);
+		}
+		return unchoked.contains(clientId);
+	}
+
+	private void rechoke(Collection<Integer> neighbors) {
+		List<Integer> candidates = new ArrayList<Integer>(new HashSet<Integer>(neighbors));
+		candidates.remove(Integer.valueOf(0));
+		// random order first, so neighbors that gave nothing are picked at random
+		Collections.shuffle(candidates);
+		Collections.sort(candidates, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(getReceived(b), getReceived(a));
+			}
+		});
+
+		Set<Integer> previous = unchoked;
+		unchoked = new HashSet<Integer>(candidates.subList(0, Math.min(numSlots - 1, candidates.size())));
+		// the optimistic unchoke goes to one of the rest
+		if(candidates.size() >= numSlots) {
+			List<Integer> rest = candidates.subList(numSlots - 1, candidates.size());
+			unchoked.add(rest.get((int) (Math.random() * rest.size())));
+		}
+		if(!unchoked.equals(previous)) {
+			System.out.println("UPLOAD: Unchoked upload neighbors " + unchoked);
+		}
+		received.clear();
+	}
+
+	private long getReceived(int clientId) {
+		Long total = received.get(clientId);
+		return null == total ? 0 : total;
+	}
+}
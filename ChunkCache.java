@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Popular chunks in direct buffers, shared by all upload paths of a server
+ * or client (CHUNK_CACHE_SIZE), so a chunk many peers ask for is read from
+ * disk once instead of once per request. Sources are read through views
+ * from wrap, the chunks of different sources are told apart by sourceId.
+ *
+ * Every request for a whole chunk counts towards its frequency in a
+ * count-min sketch, which is halved every AGING_PERIOD requests per cached
+ * chunk, but not more often than every SKETCH_WIDTH requests, so chunks
+ * that were popular a while ago make room for today's. A chunk that is not
+ * cached is only taken in if the cache has room for it or the least
+ * recently used chunks it would push out are asked for less often.
+ *
+ * A request that misses is served from the source as if there was no
+ * cache, and the chunk is loaded on a loader thread if it is worth it, so
+ * no upload path waits for the disk. Chunks a client just received can be
+ * offered, they count as asked for once and are loaded by the caller.
+ *
+ * Cached chunks are copies, the chunks of a source must not change once
+ * served; which holds for the server's files and for chunks a client
+ * verified.
+ */
+class ChunkCache {
+	private static final int AGING_PERIOD = 16;
+	// counters per row of the sketch, a power of two
+	private static final int SKETCH_WIDTH = 4096;
+	private static final long[] SKETCH_SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+	// loads waiting or running at most, misses past that are not loaded
+	private static final int MAX_LOADS = 16;
+
+	private long capacity;
+	private long size;
+	// cached chunks, least recently used first
+	private LinkedHashMap<Long, ByteBuffer> chunks = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true);
+	// requests for every chunk seen, cached or not, aged by halving
+	private int[][] sketch = new int[SKETCH_SEEDS.length][SKETCH_WIDTH];
+	private long requestsSinceAging;
+	// chunks being loaded after a miss
+	private Set<Long> loading = new HashSet<Long>();
+	private ExecutorService loader = ChunkVerifier.newThreadPool(2, "ChunkCacheLoader");
+
+	public ChunkCache(long capacity) {
+		this.capacity = capacity;
+		Metrics.gauge("chunk_cache_bytes", new Metrics.Gauge() {
+			public long get() {
+				return getSize();
+			}
+		});
+	}
+
+	// source whose chunks are served through this cache
+	public ChunkSource wrap(ChunkSource source, int sourceId) {
+		return new CachedChunkSource(source, sourceId);
+	}
+
+	/**
+	 * Takes in a chunk of source that was just received, if it is worth it,
+	 * so it goes to the next peers without a trip to the disk.
+	 */
+	public void offer(ChunkSource source, int sourceId, int chunkNum) throws IOException {
+		long key = getKey(sourceId, chunkNum);
+		synchronized(this) {
+			if(chunks.containsKey(key)) {
+				return;
+			}
+			countRequest(key);
+		}
+		load(source, key, chunkNum);
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private static long getKey(int sourceId, int chunkNum) {
+		return (long) sourceId << 32 | chunkNum;
+	}
+
+	// the cached chunk for a request of the whole chunk; null if not cached, it is loaded in the background if it is worth it
+	private ByteBuffer request(final ChunkSource source, final long key, final int chunkNum) {
+		synchronized(this) {
+			countRequest(key);
+			ByteBuffer chunk = chunks.get(key);
+			if(null != chunk) {
+				Metrics.CHUNK_CACHE_HITS.increment();
+				return chunk;
+			}
+			Metrics.CHUNK_CACHE_MISSES.increment();
+			if(loading.size() >= MAX_LOADS || loading.contains(key) || !isWorthCaching(key, source.getChunkSize(chunkNum))) {
+				return null;
+			}
+			loading.add(key);
+		}
+		loader.execute(new Runnable() {
+			public void run() {
+				try {
+					load(source, key, chunkNum);
+				} catch(IOException ie) {
+					ie.printStackTrace();
+				} finally {
+					synchronized(ChunkCache.this) {
+						loading.remove(key);
+					}
+				}
+			}
+		});
+		return null;
+	}
+
+	private synchronized ByteBuffer get(long key) {
+		return chunks.get(key);
+	}
+
+	// reads the chunk into a direct buffer and caches it, unless it is not worth the room
+	private void load(ChunkSource source, long key, int chunkNum) throws IOException {
+		int chunkSize = source.getChunkSize(chunkNum);
+		synchronized(this) {
+			if(chunks.containsKey(key) || !isWorthCaching(key, chunkSize)) {
+				return;
+			}
+		}
+		ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+		BufferChannel target = new BufferChannel(chunk);
+		while(chunk.hasRemaining()) {
+			source.transferChunk(chunkNum, chunk.position(), chunk.remaining(), target);
+		}
+		chunk.flip();
+		synchronized(this) {
+			// loaded by another thread meanwhile, or no longer worth it
+			if(chunks.containsKey(key) || !isWorthCaching(key, chunkSize)) {
+				return;
+			}
+			Iterator<ByteBuffer> eldest = chunks.values().iterator();
+			while(size + chunkSize > capacity) {
+				size -= eldest.next().capacity();
+				eldest.remove();
+			}
+			chunks.put(key, chunk);
+			size += chunkSize;
+		}
+	}
+
+	// caller holds the lock
+	private boolean isWorthCaching(long key, int chunkSize) {
+		if(chunkSize > capacity) {
+			return false;
+		}
+		// would the chunks making room for it be asked for less often
+		int frequency = getFrequency(key);
+		long room = capacity - size;
+		Iterator<Map.Entry<Long, ByteBuffer>> eldest = chunks.entrySet().iterator();
+		while(room < chunkSize) {
+			Map.Entry<Long, ByteBuffer> victim = eldest.next();
+			if(getFrequency(victim.getKey()) >= frequency) {
+				return false;
+			}
+			room += victim.getValue().capacity();
+		}
+		return true;
+	}
+
+	// caller holds the lock; the smallest of the key's counters, which is never below its requests
+	private int getFrequency(long key) {
+		int frequency = Integer.MAX_VALUE;
+		for(int row=0; row<sketch.length; row++) {
+			frequency = Math.min(frequency, sketch[row][getIndex(key, row)]);
+		}
+		return frequency;
+	}
+
+	private static int getIndex(long key, int row) {
+		return (int) ((key * SKETCH_SEEDS[row]) >>> 40) & (SKETCH_WIDTH - 1);
+	}
+
+	// caller holds the lock
+	private void countRequest(long key) {
+		for(int row=0; row<sketch.length; row++) {
+			sketch[row][getIndex(key, row)]++;
+		}
+		if(++requestsSinceAging < Math.max(SKETCH_WIDTH, AGING_PERIOD * chunks.size())) {
+			return;
+		}
+		requestsSinceAging = 0;
+		for(int[] counters: sketch) {
+			for(int i=0; i<counters.length; i++) {
+				counters[i] /= 2;
+			}
+		}
+	}
+
+	/**
+	 * Serves whole chunk requests from the cache. Requests that start past
+	 * the beginning of a chunk, the rest of a chunk a non-blocking socket
+	 * did not take at once or blocks, are served from the cache if the chunk
+	 * is there but do not count as requests.
+	 */
+	private class CachedChunkSource implements ChunkSource {
+		private ChunkSource source;
+		private int sourceId;
+
+		public CachedChunkSource(ChunkSource source, int sourceId) {
+			this.source = source;
+			this.sourceId = sourceId;
+		}
+
+		public int getNumChunks() {
+			return source.getNumChunks();
+		}
+
+		public int getChunkSize(int chunkNum) {
+			return source.getChunkSize(chunkNum);
+		}
+
+		public long transferChunk(int chunkNum, long position, long count, WritableByteChannel target) throws IOException {
+			long key = getKey(sourceId, chunkNum);
+			ByteBuffer chunk = 0 == position ? request(source, key, chunkNum) : get(key);
+			if(null == chunk) {
+				return source.transferChunk(chunkNum, position, count, target);
+			}
+			ByteBuffer src = chunk.duplicate();
+			src.position((int) position);
+			src.limit((int) Math.min(src.limit(), position + count));
+			return target.write(src);
+		}
+
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+
+	// fills a buffer with what is written to it
+	private static class BufferChannel implements WritableByteChannel {
+		private ByteBuffer buff;
+
+		public BufferChannel(ByteBuffer buff) {
+			this.buff = buff;
+		}
+
+		public int write(ByteBuffer src) {
+			int n = Math.min(src.remaining(), buff.remaining());
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			buff.put(part);
+			src.position(src.position() + n);
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+}
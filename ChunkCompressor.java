@@ -0,0 +1,135 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Deflated forms of the chunks of a source, for sending chunks compressed
+ * to peers that speak protocol version 4 (COMPRESSION=DEFLATE). A sample
+ * from the middle of a chunk is deflated first, and only a chunk whose
+ * sample shrinks to MAX_RATIO is deflated as a whole, so already compressed
+ * content such as PDFs, images or archives costs the sample and goes raw.
+ * A chunk that does not shrink as a whole goes raw as well.
+ *
+ * Results, that a chunk goes raw included, are cached up to cacheSize bytes,
+ * least recently used out first, so a chunk is deflated once however many
+ * peers it is sent to. Every entry counts ENTRY_SIZE bytes on top of its
+ * deflated bytes, so chunks that go raw are bounded too. Chunks must not change once
+ * deflated, which holds for the server's files and for chunks a client
+ * verified.
+ */
+class ChunkCompressor {
+	private static final int SAMPLE_SIZE = 16384;
+	// a deflated chunk must save at least a tenth to be worth the receiver's time
+	private static final double MAX_RATIO = 0.9;
+	// cached for chunks that go raw
+	static final byte[] RAW = new byte[0];
+	// about what a map entry and its array header take
+	private static final int ENTRY_SIZE = 64;
+
+	private ChunkSource source;
+	private long cacheSize;
+	// deflated chunks by chunk number, least recently used first
+	private LinkedHashMap<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+	private long cachedBytes;
+
+	public ChunkCompressor(ChunkSource source, long cacheSize) {
+		this.source = source;
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Returns the deflated chunk, or null if it goes raw. Safe to call from
+	 * any thread; two threads asking for the same new chunk at once may
+	 * both deflate it.
+	 */
+	public byte[] getDeflated(int chunkNum) throws IOException {
+		byte[] deflated;
+		synchronized(this) {
+			deflated = cache.get(chunkNum);
+		}
+		if(null == deflated) {
+			deflated = deflate(readChunk(chunkNum));
+			put(chunkNum, deflated);
+		}
+		return RAW == deflated ? null : deflated;
+	}
+
+	/**
+	 * Returns the cached result for the chunk without deflating it: the
+	 * deflated chunk, RAW if it goes raw, or null if it is not cached.
+	 */
+	public synchronized byte[] getCached(int chunkNum) {
+		return cache.get(chunkNum);
+	}
+
+	private synchronized void put(int chunkNum, byte[] deflated) {
+		byte[] old = cache.put(chunkNum, deflated);
+		if(null != old) {
+			cachedBytes -= ENTRY_SIZE + old.length;
+		}
+		cachedBytes += ENTRY_SIZE + deflated.length;
+		Iterator<Map.Entry<Integer, byte[]>> it = cache.entrySet().iterator();
+		while(cachedBytes > cacheSize && it.hasNext()) {
+			cachedBytes -= ENTRY_SIZE + it.next().getValue().length;
+			it.remove();
+		}
+	}
+
+	private byte[] readChunk(int chunkNum) throws IOException {
+		int chunkSize = source.getChunkSize(chunkNum);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunkSize);
+		WritableByteChannel target = Channels.newChannel(bytes);
+		long position = 0;
+		while(position < chunkSize) {
+			position += source.transferChunk(chunkNum, position, chunkSize - position, target);
+		}
+		return bytes.toByteArray();
+	}
+
+	// RAW unless the sample and then the whole chunk shrink to MAX_RATIO
+	private static byte[] deflate(byte[] chunk) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			int sampleSize = Math.min(SAMPLE_SIZE, chunk.length);
+			deflater.setInput(chunk, (chunk.length - sampleSize) / 2, sampleSize);
+			if(!shrinks(deflater, sampleSize)) {
+				return RAW;
+			}
+			deflater.reset();
+			deflater.setInput(chunk);
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream(chunk.length / 2);
+			byte[] buff = new byte[8192];
+			int limit = (int) (chunk.length * MAX_RATIO);
+			deflater.finish();
+			while(!deflater.finished()) {
+				deflated.write(buff, 0, deflater.deflate(buff));
+				if(deflated.size() > limit) {
+					return RAW;
+				}
+			}
+			return deflated.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	// deflates the input set on deflater, false once it is past MAX_RATIO of size
+	private static boolean shrinks(Deflater deflater, int size) {
+		byte[] buff = new byte[8192];
+		int limit = (int) (size * MAX_RATIO);
+		int total = 0;
+		deflater.finish();
+		while(!deflater.finished()) {
+			total += deflater.deflate(buff);
+			if(total > limit) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,175 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+
+/**
+ * On-disk record of the verified chunks of a download, so a restarted client
+ * picks up where it stopped without reading the downloaded data again.
+ *
+ *   int magic | long fileSize | int numChunks | int chunkSize | UTF root | UTF fileName | bitmap
+ *
+ * The bit of a chunk (bit chunkNum-1) is written once the chunk is stored,
+ * verified and forced to disk. Chunks are committed in groups, every
+ * SYNC_CHUNKS chunks or SYNC_INTERVAL ms, with one force of the store and one
+ * sync of the journal, so a client that dies re-fetches at most the chunks it
+ * was receiving and the last SYNC_CHUNKS it had not committed yet.
+ * chunkSize, the size of all chunks but the last, is 0 until one of them is
+ * recorded. root is the manifest root, empty without a manifest.
+ */
+class ChunkJournal implements Closeable {
+	private static final int MAGIC = 0x50325031;
+	private static final int SYNC_CHUNKS = 16;
+	private static final long SYNC_INTERVAL = 1000;
+
+	private RandomAccessFile raf;
+	private ChunkStore store;
+	private long chunkSizeOffset;
+	private long bitmapOffset;
+	private int numChunks;
+	private int chunkSize;
+	private BitSet chunks;
+	// recorded chunks not committed yet
+	private BitSet pending = new BitSet();
+	private long lastSync = System.currentTimeMillis();
+
+	/**
+	 * Opens the journal in file, or starts a new one if there is none or it
+	 * belongs to another download.
+	 */
+	public ChunkJournal(File file, String fileName, long fileSize, ChunkStore store, String root) throws IOException {
+		File dir = file.getParentFile();
+		if(null != dir && !dir.exists()) {
+			dir.mkdirs();
+		}
+		this.raf = new RandomAccessFile(file, "rw");
+		this.store = store;
+		this.numChunks = store.getNumChunks();
+		this.chunks = new BitSet(numChunks);
+		if(!read(fileName, fileSize, root)) {
+			write(fileName, fileSize, root);
+		}
+	}
+
+	// chunks recorded in an earlier run whose offset is known
+	public BitSet getChunks() {
+		BitSet known = (BitSet) chunks.clone();
+		if(0 == chunkSize && 1 < numChunks) {
+			known.clear(numChunks-1);
+		}
+		return known;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	// the chunk is committed with the next group
+	public void record(int chunkNum, int size) throws IOException {
+		boolean isDue;
+		synchronized(this) {
+			if(0 == chunkSize && chunkNum < numChunks) {
+				chunkSize = size;
+				raf.seek(chunkSizeOffset);
+				raf.writeInt(chunkSize);
+			}
+			pending.set(chunkNum-1);
+			isDue = SYNC_CHUNKS <= pending.cardinality() || SYNC_INTERVAL <= System.currentTimeMillis() - lastSync;
+		}
+		if(isDue) {
+			flush();
+		}
+	}
+
+	// commits the recorded chunks, their data first
+	public void flush() throws IOException {
+		BitSet group;
+		synchronized(this) {
+			if(pending.isEmpty()) {
+				return;
+			}
+			group = pending;
+			pending = new BitSet();
+			lastSync = System.currentTimeMillis();
+		}
+		// outside the lock, so chunks recorded meanwhile do not wait for the force
+		store.force(group);
+		synchronized(this) {
+			chunks.or(group);
+			int last = -1;
+			for(int bit = group.nextSetBit(0); 0 <= bit; bit = group.nextSetBit(bit+1)) {
+				int index = bit / 8;
+				if(index == last) {
+					continue;
+				}
+				last = index;
+				int b = 0;
+				for(int i=0; i<8; i++) {
+					if(chunks.get(index*8 + i)) {
+						b |= 1 << i;
+					}
+				}
+				raf.seek(bitmapOffset + index);
+				raf.write(b);
+			}
+			raf.getFD().sync();
+		}
+	}
+
+	// forgets recorded chunks that are not in kept, their data is gone
+	public synchronized void retain(BitSet kept) throws IOException {
+		chunks.and(kept);
+		pending.and(kept);
+		byte[] bitmap = new byte[(numChunks + 7) / 8];
+		byte[] bits = chunks.toByteArray();
+		System.arraycopy(bits, 0, bitmap, 0, bits.length);
+		raf.seek(bitmapOffset);
+		raf.write(bitmap);
+		raf.getFD().sync();
+	}
+
+	public void close() throws IOException {
+		flush();
+		raf.close();
+	}
+
+	private boolean read(String fileName, long fileSize, String root) throws IOException {
+		if(raf.length() < 20) {
+			return false;
+		}
+		raf.seek(0);
+		if(MAGIC != raf.readInt() || fileSize != raf.readLong() || numChunks != raf.readInt()) {
+			return false;
+		}
+		chunkSizeOffset = raf.getFilePointer();
+		int storedChunkSize = raf.readInt();
+		if(!root.equals(raf.readUTF()) || !fileName.equals(raf.readUTF())) {
+			return false;
+		}
+		bitmapOffset = raf.getFilePointer();
+		byte[] bitmap = new byte[(numChunks + 7) / 8];
+		if(raf.length() < bitmapOffset + bitmap.length) {
+			return false;
+		}
+		raf.readFully(bitmap);
+		chunkSize = storedChunkSize;
+		chunks = BitSet.valueOf(bitmap);
+		return true;
+	}
+
+	private void write(String fileName, long fileSize, String root) throws IOException {
+		raf.setLength(0);
+		raf.writeInt(MAGIC);
+		raf.writeLong(fileSize);
+		raf.writeInt(numChunks);
+		chunkSizeOffset = raf.getFilePointer();
+		raf.writeInt(0);
+		raf.writeUTF(root);
+		raf.writeUTF(fileName);
+		bitmapOffset = raf.getFilePointer();
+		raf.write(new byte[(numChunks + 7) / 8]);
+		chunkSize = 0;
+		chunks.clear();
+	}
+}
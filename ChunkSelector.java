@@ -0,0 +1,11 @@
+import java.util.BitSet;
+
+/**
+ * Picks the chunk to request or send next out of a non-empty set of
+ * candidates. copies counts for each chunk (index chunkNum-1) how many
+ * sources are known to have it, numReceived is the number of chunks the
+ * receiving side already has. Returns the chunk number.
+ */
+interface ChunkSelector {
+	int select(BitSet candidates, int[] copies, int numReceived);
+}
@@ -0,0 +1,8 @@
+/**
+ * Picks the chunk size of a file from its size and the number of clients
+ * it is distributed to. Set per file when it is opened and fixed from then
+ * on, the manifest and resumed downloads depend on it.
+ */
+interface ChunkSizePolicy {
+	int getChunkSize(long fileSize, int numClients);
+}
@@ -0,0 +1,20 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Chunks of a file being served. Chunk numbers start at 1, like the
+ * chunk ids exchanged on the wire.
+ */
+interface ChunkSource extends Closeable {
+	int getNumChunks();
+
+	int getChunkSize(int chunkNum);
+
+	/**
+	 * Writes up to count bytes of a chunk to target starting at position
+	 * within the chunk. Returns number of bytes written, which may be less
+	 * if the target is non-blocking.
+	 */
+	long transferChunk(int chunkNum, long position, long count, WritableByteChannel target) throws IOException;
+}
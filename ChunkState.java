@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Download state of the file, shared by all handlers of a client.
+ * Bit chunkNum-1 of a bitset stands for chunk chunkNum.
+ *
+ * Received chunks are read far more often than anything else, by upload
+ * handlers and by every handler checking for completion, so they are kept
+ * in an AtomicBitSet that is read without locking. The request bookkeeping
+ * behind claimNext is only touched by download handlers and stays under
+ * the lock.
+ */
+class ChunkState {
+	private volatile int numChunks = -1;
+	// size of all chunks but the last, 0 if the server did not tell
+	private volatile int chunkSize;
+	private volatile long fileSize;
+	private ChunkSelector selector;
+	private boolean isEndgameEnabled;
+	private volatile AtomicBitSet chunksReceived = new AtomicBitSet(0);
+	// set by the handler that completes the download, released once the completed file is in place
+	private final AtomicBoolean isCompleting = new AtomicBoolean();
+	private final CountDownLatch downloadComplete = new CountDownLatch(1);
+	// chunks some handler is writing to disk
+	private BitSet chunksStoring = new BitSet();
+	// outstanding requests per chunk, more than one only in endgame
+	private int[] requests;
+	// number of download neighbors that have each chunk
+	private int[] copies;
+	// number of times each chunk failed verification
+	private int[] failures;
+	// records received chunks for a restart, null if there is none
+	private volatile ChunkJournal journal;
+
+	public ChunkState(ChunkSelector selector, boolean isEndgameEnabled) {
+		this.selector = selector;
+		this.isEndgameEnabled = isEndgameEnabled;
+	}
+
+	public synchronized void setNumChunks(int numChunks) {
+		this.chunksReceived = new AtomicBitSet(numChunks);
+		this.numChunks = numChunks;
+		this.requests = new int[numChunks];
+		this.copies = new int[numChunks];
+		this.failures = new int[numChunks];
+	}
+
+	public void setChunkSize(int chunkSize, long fileSize) {
+		this.fileSize = fileSize;
+		this.chunkSize = chunkSize;
+	}
+
+	// 0 until known
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	// size of the chunk, the last one takes what is left of the file
+	public int getChunkSize(int chunkNum) {
+		if(chunkNum == numChunks) {
+			return (int) (fileSize - (long) (numChunks - 1) * chunkSize);
+		}
+		return chunkSize;
+	}
+
+	public void setJournal(ChunkJournal journal) {
+		this.journal = journal;
+	}
+
+	// chunks received in an earlier run
+	public void restore(BitSet chunks) {
+		chunksReceived.or(chunks);
+		if(isComplete()) {
+			isCompleting.set(true);
+		}
+	}
+
+	public boolean isComplete() {
+		return chunksReceived.cardinality() == numChunks;
+	}
+
+	public int getNumReceived() {
+		return chunksReceived.cardinality();
+	}
+
+	// false for chunk numbers out of range
+	public boolean isReceived(int chunkNum) {
+		AtomicBitSet received = chunksReceived;
+		return 1 <= chunkNum && chunkNum <= received.size() && received.get(chunkNum-1);
+	}
+
+	// -1 until known
+	public int getNumChunks() {
+		return numChunks;
+	}
+
+	public BitSet getReceived() {
+		return chunksReceived.toBitSet();
+	}
+
+	// called once the completed file is in place
+	public void downloadCompleted() {
+		downloadComplete.countDown();
+	}
+
+	public void awaitComplete() {
+		try {
+			downloadComplete.await();
+		} catch(InterruptedException ie) {
+			ie.printStackTrace();
+		}
+	}
+	
+	// waits at most timeout ms, returns true if the completed file is in place
+	public boolean awaitComplete(long timeout) {
+		try {
+			return downloadComplete.await(timeout, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException ie) {
+			ie.printStackTrace();
+		}
+		return isDownloadCompleted();
+	}
+	
+	public boolean isDownloadCompleted() {
+		return 0 == downloadComplete.getCount();
+	}
+
+	// a download neighbor announced these chunks
+	public synchronized void addAvailable(BitSet chunks) {
+		for(int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i+1)) {
+			copies[i]++;
+		}
+	}
+
+	// a download neighbor with these chunks is gone
+	public synchronized void removeAvailable(BitSet chunks) {
+		for(int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i+1)) {
+			copies[i]--;
+		}
+	}
+
+	/**
+	 * Picks the next chunk to request out of available and counts the
+	 * request. Once every missing chunk is requested somewhere (endgame),
+	 * chunks requested from other neighbors are picked too, except those in
+	 * own. Returns 0 if there is nothing to request.
+	 */
+	public synchronized int claimNext(BitSet available, Collection<Integer> own) {
+		BitSet received = chunksReceived.toBitSet();
+		BitSet candidates = (BitSet) available.clone();
+		candidates.andNot(received);
+		candidates.andNot(chunksStoring);
+		BitSet unrequested = new BitSet();
+		for(int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i+1)) {
+			if(0 == requests[i]) {
+				unrequested.set(i);
+			}
+		}
+		
+		if(!unrequested.isEmpty()) {
+			candidates = unrequested;
+		} else if(isEndgameEnabled && isEndgame()) {
+			for(int chunkNum: own) {
+				candidates.clear(chunkNum-1);
+			}
+		} else {
+			return 0;
+		}
+		if(candidates.isEmpty()) {
+			return 0;
+		}
+		
+		int chunkNum = selector.select(candidates, copies, received.cardinality());
+		requests[chunkNum-1]++;
+		return chunkNum;
+	}
+
+	// every missing chunk has been requested
+	private boolean isEndgame() {
+		BitSet received = chunksReceived.toBitSet();
+		for(int i = received.nextClearBit(0); i < numChunks; i = received.nextClearBit(i+1)) {
+			if(0 == requests[i] && !chunksStoring.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// a request for the chunk will not be answered
+	public synchronized void release(int chunkNum) {
+		if(0 < requests[chunkNum-1]) {
+			requests[chunkNum-1]--;
+		}
+	}
+
+	// returns false if the chunk is received or being stored by another handler
+	public synchronized boolean beginStore(int chunkNum) {
+		if(chunksReceived.get(chunkNum-1) || chunksStoring.get(chunkNum-1)) {
+			return false;
+		}
+		chunksStoring.set(chunkNum-1);
+		return true;
+	}
+
+	// storing the chunk failed, it can be requested again
+	public synchronized void abortStore(int chunkNum) {
+		chunksStoring.clear(chunkNum-1);
+		if(null != requests) {
+			requests[chunkNum-1] = 0;
+		}
+	}
+
+	// the chunk failed verification, it can be requested again
+	public synchronized void reject(int chunkNum) {
+		failures[chunkNum-1]++;
+		abortStore(chunkNum);
+	}
+
+	// whether more download neighbors have the chunk than it failed verification
+	public synchronized boolean hasUntriedSources(int chunkNum) {
+		return failures[chunkNum-1] < copies[chunkNum-1];
+	}
+
+	// returns true if this chunk completed the download
+	public boolean setReceived(int chunkNum, int chunkSize) {
+		ChunkJournal journal = this.journal;
+		if(null != journal) {
+			try {
+				journal.record(chunkNum, chunkSize);
+			} catch(IOException ie) {
+				ie.printStackTrace();
+			}
+		}
+		// set before the chunk stops storing, so beginStore never sees neither
+		chunksReceived.set(chunkNum-1);
+		synchronized(this) {
+			chunksStoring.clear(chunkNum-1);
+			if(null != requests) {
+				requests[chunkNum-1] = 0;
+			}
+		}
+		// only one of the handlers setting the last chunks gets true
+		if(isComplete() && isCompleting.compareAndSet(false, true)) {
+			if(null != journal) {
+				// commits the last group, nothing is left to fetch
+				try {
+					journal.flush();
+				} catch(IOException ie) {
+					ie.printStackTrace();
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+}
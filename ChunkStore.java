@@ -0,0 +1,33 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Chunks of a file being downloaded. Stored chunks are served to upload
+ * neighbors through the ChunkSource methods right away.
+ */
+interface ChunkStore extends ChunkSource {
+	/**
+	 * Stores a chunk whose bytes follow a chunk header on the channel. The
+	 * chunk bytes are consumed from the channel unless an IOException is thrown.
+	 */
+	void storeChunk(int chunkNum, int chunkSize, MessageChannel channel) throws IOException;
+
+	/**
+	 * Stores length bytes at offset of a chunk of chunkSize bytes, which
+	 * follow a block header on the channel. Consumed like in storeChunk.
+	 */
+	void storeBlock(int chunkNum, int chunkSize, int offset, int length, MessageChannel channel) throws IOException;
+
+	/**
+	 * Takes back chunks stored in an earlier run, all but the last of which
+	 * have chunkSize bytes. Returns the chunks that are still there.
+	 */
+	BitSet restore(BitSet chunks, int chunkSize);
+
+	// forces stored chunks (bit chunkNum-1) to disk, before the journal records them
+	void force(BitSet chunks) throws IOException;
+
+	// called once all chunks are stored, returns the downloaded file
+	File complete() throws IOException;
+}
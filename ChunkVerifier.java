@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Verifies stored chunks against the manifest on a pool of threads, so
+ * hashing runs on all cores while download handlers go on reading from
+ * the network.
+ */
+class ChunkVerifier {
+	private Manifest manifest;
+	private ChunkSource chunks;
+	private ExecutorService executor;
+
+	public ChunkVerifier(Manifest manifest, ChunkSource chunks, int numThreads) {
+		this.manifest = manifest;
+		this.chunks = chunks;
+		this.executor = newThreadPool(numThreads, "ChunkVerifier");
+	}
+
+	// thread pool whose threads do not keep the JVM running
+	public static ExecutorService newThreadPool(int numThreads, final String name) {
+		return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			private int threadNum = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + (++threadNum));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public Future<Boolean> submit(Callable<Boolean> task) {
+		return executor.submit(task);
+	}
+
+	public boolean verify(int chunkNum) throws IOException {
+		return manifest.verify(chunkNum, Manifest.hash(chunks, chunkNum));
+	}
+}
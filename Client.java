@@ -1,529 +1,1444 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ConnectException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-public class Client {
-	public static void main(String[] args) {	
-		System.out.println("Client Started !!");
-		
-		File[] chunks = null;
-		List<String> chunksReceived = new ArrayList<String>();
-		List<String> chunksRemaining = new ArrayList<String>();
-		
-		int serverPort = ClientUtility.getServerPort();
-		ClientHandler serverDownloadHandler = new ClientHandler(TYPE.ServerDownloadHandler, serverPort, chunksReceived, chunksRemaining);
-		serverDownloadHandler.start();
-		
-		while(serverDownloadHandler.isAlive());
-		int clientId = serverDownloadHandler.getClientId();
-		String fileName = serverDownloadHandler.getFileName();
-		chunks = serverDownloadHandler.getChunks();
-		
-		String[] peerConfig = ClientUtility.getPeerConfig(clientId);
-		int downloadNeighborPort = Integer.parseInt(peerConfig[2]);
-		int uploadNeighborPort = Integer.parseInt(peerConfig[1]);
-		
-		if(0 < chunksRemaining.size()) {
-			ClientHandler neighborDownloadHandler = new ClientHandler(TYPE.NeighborDownloadHandler, downloadNeighborPort, chunksReceived, chunksRemaining);
-			neighborDownloadHandler.setClientId(clientId);
-			neighborDownloadHandler.setFileName(fileName);
-			neighborDownloadHandler.setChunks(chunks);
-			neighborDownloadHandler.start();
-		} else {
-			ClientUtility.mergeFiles(Arrays.asList(chunks));
-		}
-		
-		ClientHandler neighborUploadHandler = new ClientHandler(TYPE.NeighborUploadHandler, uploadNeighborPort, chunksReceived, chunksRemaining);
-		neighborUploadHandler.setClientId(clientId);
-		neighborUploadHandler.setFileName(fileName);
-		neighborUploadHandler.setChunks(chunks);
-		neighborUploadHandler.start();
-	}
-}
-
-enum TYPE { ServerDownloadHandler, NeighborDownloadHandler, NeighborUploadHandler };
-
-class ClientHandler extends Thread {
-	private static final String ROOT_DIR = "data\\";
-	
-	private TYPE type;
-	private int clientId;
-	private int port;
-	private ServerSocket listener;
-	private Socket connection; 
-	private ObjectOutputStream os;
-	private ObjectInputStream is;
-	private String fileName;
-	private List<String> chunksReceived;
-	private List<String> chunksRemaining;
-	private File[] chunks;
-	
-	public ClientHandler(TYPE type, int port, List<String> chunksReceived, List<String> chunksRemaining) {
-		this.type = type;
-		this.port = port;
-		this.chunksReceived = chunksReceived;
-		this.chunksRemaining = chunksRemaining; 
-	}
-	
-	public void setClientId(int clientId) {
-		this.clientId = clientId;
-	}
-	
-	public int getClientId() {
-		return this.clientId;
-	}
-	
-	public String getFileName() {
-		return fileName;
-	}
-
-	public void setFileName(String fileName) {
-		this.fileName = fileName;
-	}
-	
-	public File[] getChunks() {
-		return chunks;
-	}
-
-	public void setChunks(File[] chunks) {
-		this.chunks = chunks;
-	}
-
-	public void run() {
-		switch(type) {
-			case ServerDownloadHandler: handleDownloadFromServer();
-			break;
-			case NeighborDownloadHandler: handleDownloadFromNeighbor();
-			break;
-			case NeighborUploadHandler: handleUploadToNeighbor();
-			break;
-		}
-	}
-	
-	private void handleDownloadFromServer() {
-		try {
-			connection = new Socket("localhost", port);
-			System.out.println("Connected to Server on port " + port);
-			
-			initializeInputOutputStreams();
-
-			boolean flag = true;
-			while (flag) {
-				String msg = is.readUTF();
-				String[] str = msg.split(":");
-				switch(str[0]) {
-					case "CLIENT_ID": this.clientId = Integer.parseInt(str[1]);
-						System.out.println("Client Id: " + this.clientId);
-					break;
-					case "FILE_NAME": this.fileName = str[1];
-					System.out.println("File name: " + this.fileName);
-					break;
-					case "FILE_SIZE": long fileSize = Long.parseLong(str[1]);
-					System.out.println("File size: " + fileSize);
-					break;
-					case "NUM_CHUNKS": int numChunks = Integer.parseInt(str[1]);
-					System.out.println("Number of chunks: " + numChunks);
-					
-					chunks = new File[numChunks];
-					for(int i=1; i<=numChunks; i++) {
-						chunksRemaining.add("" + i);
-					}
-					break;
-					case "CHUNK": String chunkNum = str[1];
-						int chunkSize = Integer.parseInt(str[2]);
-						receiveChunk(chunkNum, chunkSize);
-						System.out.println("DOWNLOAD: Received chunk " + chunkNum + " of size " + chunkSize + " bytes from Server");
-					break;
-					case "DONE": flag = false;
-					break;
-				}
-			}
-		} catch (ConnectException e) {
-			System.err.println("Connection refused !! You need to initiate a server first !!");
-		} catch (UnknownHostException unknownHost) {
-			System.err.println("You are trying to connect to an unknown host !!");
-		} catch (IOException ioException) {
-			ioException.printStackTrace();
-		} finally {
-			// Close connections
-			try {
-				if(null != is) {
-					is.close();
-				}
-				if(null != os) {
-					os.close();
-				}
-				if(null != connection) {
-					connection.close();
-				}
-			} catch (IOException ioException) {
-				ioException.printStackTrace();
-			}
-		}
-	}
-	
-	private void handleDownloadFromNeighbor() {
-		try {
-			boolean connected = false;
-			while(!connected) {
-				try {
-					connection = new Socket("localhost", port);
-					System.out.println("Connected to download neighbor on port " + port);
-					connected = true;
-				} catch(ConnectException ce) {
-					try {
-						System.out.println("Download neighbor offline. Retry after 1 sec");
-						Thread.sleep(1000);
-					} catch(InterruptedException ie) {
-						ie.printStackTrace();
-					}
-				}
-			}
-			
-			initializeInputOutputStreams();
-
-			String req = null, res = null;
-			
-			while (0 < chunksRemaining.size()) {
-				System.out.println("DOWNLOAD: Requesting chunk list from download neighbor");
-				req = "REQ_FOR_CHUNK_LIST";
-				sendMessage(req);
-				
-				res = is.readUTF(); //comma separated list of chunk ids
-				System.out.println("DOWNLOAD: Received chunk list from download neighbor - [" + res + "]");
-				
-				String[] str = res.split(",");
-				if(!str[0].equals("NONE")) {
-					List<String> downloadNeighborChunkIds = new ArrayList<String>(Arrays.asList(str));
-					
-					downloadNeighborChunkIds.removeAll(chunksReceived);
-					if(downloadNeighborChunkIds.size() > 0) {
-						for(String chunkId: downloadNeighborChunkIds) {
-							System.out.println("DOWNLOAD: Requesting chunk " + chunkId + " from download neighbor");
-							req = "REQ_FOR_CHUNK:" + chunkId;
-							sendMessage(req);
-							
-							int chunkSize = is.readInt();
-							receiveChunk(chunkId, chunkSize);
-							System.out.println("DOWNLOAD: Received chunk " + chunkId + " of size " + chunkSize + " bytes from download neighbor");
-						}
-					} else {
-						System.out.println("DOWNLOAD: No new chunks available at download neigbor");
-					}
-				}
-				
-				try {
-					Thread.sleep(1000);
-				} catch(InterruptedException ie) {
-					ie.printStackTrace();
-				}
-			}
-			
-			req = "DONE";
-			sendMessage(req);
-			System.out.println("DOWNLOAD: File download complete");
-			
-			ClientUtility.mergeFiles(Arrays.asList(chunks));
-			
-		} catch (ConnectException e) {
-			System.err.println("Connection refused !!");
-		} catch (UnknownHostException unknownHost) {
-			System.err.println("You are trying to connect to an unknown host !!");
-		} catch (IOException ioException) {
-			ioException.printStackTrace();
-		} finally {
-			// Close connections
-			try {
-				if(null != is) {
-					is.close();
-				}
-				if(null != os) {
-					os.close();
-				}
-				if(null != connection) {
-					connection.close();
-				}
-			} catch (IOException ioException) {
-				ioException.printStackTrace();
-			}
-		}
-	}
-	
-	private void handleUploadToNeighbor() {
-		try {
-			listener = new ServerSocket(port);
-			connection = listener.accept();
-			System.out.println("Upload neighbor is connected");
-			
-			initializeInputOutputStreams();
-			
-			String req = null, res = null;
-			boolean isUploadComplete = false;
-			while(!isUploadComplete) {
-				req = is.readUTF();
-				String[] str = req.split(":");
-				
-				switch(str[0]) {
-					case "REQ_FOR_CHUNK_LIST": 
-						System.out.println("UPLOAD: Received request for chunk list from upload neighbor");
-						String chunkList = chunksReceived.size() > 0 ? getReceivedChunksList() : "NONE"; 
-						sendMessage(chunkList);
-						System.out.println("UPLOAD: Chunk list sent to upload neighbor - [" + chunkList + "]");
-					break;
-					
-					case "REQ_FOR_CHUNK": 
-						int chunkNum = Integer.parseInt(str[1]);
-						System.out.println("UPLOAD: Received request for chunk " + chunkNum + " from upload neighbor");
-						File chunk = chunks[chunkNum-1];
-						
-						int chunkSize = (int) chunk.length();
-						os.writeInt(chunkSize);
-						os.flush();
-						
-						System.out.println("UPLOAD: Sending chunk " + chunkNum + " of size " + chunkSize + " bytes to upload neighbor");
-						sendChunk(chunk, chunkSize);
-					break;
-					
-					case "DONE": isUploadComplete = true;
-						System.out.println("UPLOAD: File upload complete");
-					break;
-				}
-			}
-			
-			
-		} catch(IOException ie) {
-			ie.printStackTrace();
-		}
-	}
-	
-	private String getReceivedChunksList() {
-		String res = "";
-		for(String chunkId: chunksReceived) {
-			res += chunkId + ",";
-		}
-		
-		return res.substring(0, res.length()-1);
-	}
-	
-	private void receiveChunk(String chunkId, int chunkSize) {
-		File chunkDir = null;
-		File chunk = null;
-		FileOutputStream fos = null;
-		BufferedOutputStream bos = null;
-		byte[] buff = null;
-		
-		try {
-			chunkDir = new File(ROOT_DIR, "Client" + clientId + "\\part");
-			if(!chunkDir.exists()) {
-				chunkDir.mkdirs();
-			}
-			
-			if(null == buff) {
-				buff = new byte[chunkSize];
-			}
-			
-			is.readFully(buff);
-			
-			int chunkNum = Integer.parseInt(chunkId);
-			chunk = new File(chunkDir.getPath(), this.fileName + "." + String.format("%03d", chunkNum));
-			fos = new FileOutputStream(chunk);
-			bos = new BufferedOutputStream(fos);
-			bos.write(buff, 0, chunkSize);
-			
-			bos.close();
-			fos.close();
-			
-			chunks[chunkNum-1] = chunk;
-			chunksRemaining.remove(chunkId);
-			chunksReceived.add(chunkId);
-		} catch(Exception e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if(null != bos) {
-					bos.close();
-				}
-				if(null != fos) {
-					fos.close();
-				}
-			} catch(IOException ie) {
-				ie.printStackTrace();
-			}
-		}
-	}
-	
-	public void sendChunk(File chunk, int chunkSize) {
-		FileInputStream fis = null;
-		BufferedInputStream bis = null;
-		byte[] buff = null;
-		
-		try {
-			buff = new byte[chunkSize];
-			fis = new FileInputStream(chunk);
-			bis = new BufferedInputStream(fis);
-			
-			bis.read(buff, 0, chunkSize);
-			os.write(buff, 0, chunkSize);
-			
-			os.flush();
-		} catch (IOException ioException) {
-			ioException.printStackTrace();
-		} finally {
-			try {
-				if(null != bis) {
-					bis.close();
-				}
-				if(null != fis) {
-					fis.close();
-				}
-			} catch(IOException ie) {
-				ie.printStackTrace();
-			}
-		}
-	}
-	
-	private void sendMessage(String msg) {
-		try {
-			os.writeUTF(msg);
-			os.flush();
-		} catch (IOException ie) {
-			ie.printStackTrace();
-		}
-	}
-	
-	// initialize inputStream and outputStream
-	private void initializeInputOutputStreams() throws IOException {
-		os = new ObjectOutputStream(connection.getOutputStream());
-		os.flush();
-		is = new ObjectInputStream(connection.getInputStream());
-	}
-}
-
-class ClientUtility {
-	private static final String SERVER_CONFIG_FILE = "server.cfg";
-	private static final String PEERS_CONFIG_FILE = "peers.cfg";
-	
-	public static int getServerPort() {
-		BufferedReader br = null;
-		int port = 0;
-		try {
-			br = new BufferedReader(new FileReader(SERVER_CONFIG_FILE));
-			port = Integer.parseInt(br.readLine().split("=")[1]);
-		} catch(IOException ie) {
-			ie.printStackTrace();
-		} finally {
-			if(null != br) {
-				try{
-					br.close();
-				} catch(IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-		
-		return port;
-	}
-	
-	public static String[] getPeerConfig(int clientId) {
-		BufferedReader br = null;
-		String[] config = null;
-		try {
-			br = new BufferedReader(new FileReader(PEERS_CONFIG_FILE));
-			String line = br.readLine(); //reading header
-			while(null != (line = br.readLine())) {
-				config = line.split(",");
-				int peerId = Integer.parseInt(config[0]);
-				if(clientId == peerId) {
-					break;
-				} else {
-					config = null;
-				}
-			}
-		} catch(IOException ie) {
-			ie.printStackTrace();
-		} finally {
-			if(null != br) {
-				try{
-					br.close();
-				} catch(IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-		
-		return config;
-	}
-	
-	public static void mergeFiles(List<File> files) {
-		System.out.println("Merging chunks into one file");
-		FileOutputStream mergingStream = null;
-		try {
-			File filePart0 = files.get(0);
-			String filePart0Name = filePart0.getName();
-			
-			File destFileDir = new File(filePart0.getParentFile().getParent(), "completed");
-			if(!destFileDir.exists()) {
-				destFileDir.mkdir();
-			}
-			
-			String destFileName = filePart0Name.substring(0, filePart0.getName().lastIndexOf('.'));
-			File destFile = new File(destFileDir, destFileName);
-			
-			mergingStream = new FileOutputStream(destFile);
-			for (File f : files) {
-				Files.copy(f.toPath(), mergingStream);
-			}
-			
-			System.out.println("Merged file location: " + destFileDir.getPath());
-			System.out.println("Merged file name: " + destFileName);
-		} catch(Exception e) {
-			e.printStackTrace();
-		} finally {
-			if(null != mergingStream) {
-				try{
-					mergingStream.close();
-				} catch(IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
-	}
-
-	private static List<File> listOfFilesToMerge(File oneOfFiles) {
-		String tmpName = oneOfFiles.getName(); // {name}.{number}
-		String destFileName = tmpName.substring(0, tmpName.lastIndexOf('.')); // remove .{number}
-		
-		File[] files = oneOfFiles.getParentFile().listFiles(
-				(File dir, String name) -> name.matches(destFileName + "[.]\\d+"));
-		
-		Arrays.sort(files); // ensuring order 001, 002, ..., 010, ...
-		return Arrays.asList(files);
-	}
-
-	public static void mergeFiles(File oneOfFiles) {
-		mergeFiles(listOfFilesToMerge(oneOfFiles));
-	}
-
-	private static List<File> listOfFilesToMerge(String oneOfFiles) {
-		return listOfFilesToMerge(new File(oneOfFiles));
-	}
-
-	public static void mergeFiles(String oneOfFiles) {
-		mergeFiles(new File(oneOfFiles));
-	}
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Client {
+	public static void main(String[] args) {	
+		System.out.println("Client Started !!");
+		
+		ClientUtility.loadProperties();
+		ChunkStore chunkStore = null;
+		final ChunkState chunkState = new ChunkState(ClientUtility.getChunkSelector(), ClientUtility.isEndgameEnabled());
+		Metrics.gauge("chunks_received", new Metrics.Gauge() {
+			public long get() {
+				return chunkState.getNumReceived();
+			}
+		});
+		Metrics.gauge("chunks_total", new Metrics.Gauge() {
+			public long get() {
+				return Math.max(0, chunkState.getNumChunks());
+			}
+		});
+		Metrics.start(ClientUtility.getMetricsInterval());
+		
+		// a restarted client passes its old client id to resume its download
+		int resumeClientId = 0;
+		if(0 < args.length) {
+			resumeClientId = Integer.parseInt(args[0]);
+		}
+		
+		int serverPort = ClientUtility.getServerPort();
+		ClientHandler serverDownloadHandler = new ClientHandler(TYPE.ServerDownloadHandler, serverPort, chunkState);
+		serverDownloadHandler.setClientId(resumeClientId);
+		serverDownloadHandler.start();
+		
+		try {
+			serverDownloadHandler.join();
+		} catch(InterruptedException ie) {
+			ie.printStackTrace();
+		}
+		int clientId = serverDownloadHandler.getClientId();
+		String fileName = serverDownloadHandler.getFileName();
+		chunkStore = serverDownloadHandler.getChunkStore();
+		ChunkCache chunkCache = serverDownloadHandler.getChunkCache();
+		ChunkVerifier verifier = serverDownloadHandler.getChunkVerifier();
+		if(null == chunkStore) {
+			// the server is not there or does not have the file
+			return;
+		}
+		
+		InetSocketAddress tracker = ClientUtility.getTracker();
+		if(null != tracker) {
+			downloadWithTracker(tracker, clientId, fileName, chunkStore, chunkCache, verifier, chunkState);
+			return;
+		}
+		
+		String[] peerConfig = ClientUtility.getPeerConfig(clientId);
+		int listeningPort = Integer.parseInt(peerConfig[1]);
+		List<Integer> downloadNeighborPorts = ClientUtility.getDownloadNeighborPorts(peerConfig);
+		
+		ClientHandler uploadListener = new ClientHandler(TYPE.UploadListener, listeningPort, chunkState);
+		uploadListener.setClientId(clientId);
+		uploadListener.setFileName(fileName);
+		uploadListener.setChunkStore(chunkStore);
+		uploadListener.setChunkCache(chunkCache);
+		uploadListener.setNumUploadNeighbors(ClientUtility.getNumUploadNeighbors(listeningPort));
+		// accepts restarted neighbors for as long as the client runs
+		uploadListener.setDaemon(true);
+		uploadListener.start();
+		
+		if(!chunkState.isComplete()) {
+			List<ClientHandler> downloadHandlers = new ArrayList<ClientHandler>();
+			for(int downloadNeighborPort: downloadNeighborPorts) {
+				ClientHandler neighborDownloadHandler = newNeighborDownloadHandler(downloadNeighborPort, clientId, fileName, chunkStore, verifier, chunkState, uploadListener, downloadHandlers);
+				neighborDownloadHandler.setNeighborId(ClientUtility.getPeerId(downloadNeighborPort));
+				downloadHandlers.add(neighborDownloadHandler);
+			}
+			for(ClientHandler neighborDownloadHandler: downloadHandlers) {
+				neighborDownloadHandler.start();
+			}
+			// the last chunk may complete the download on a verifier thread
+			chunkState.awaitComplete();
+		}
+		System.out.println(MessageChannel.BUFFERS);
+		System.out.println(PartFileChunkStore.BUFFERS);
+		System.out.println(Metrics.getSummaryLine());
+		
+		// keep running until every upload neighbor connected once. A resumed
+		// client cannot tell which of them are done already, it only gives
+		// the others time to connect again
+		uploadListener.awaitUploadNeighbors(0 == resumeClientId ? 0 : ClientHandler.RESUME_LINGER);
+	}
+	
+	/**
+	 * Finds download neighbors through the tracker instead of peers.cfg. The
+	 * tracker is announced to every ANNOUNCE_INTERVAL ms, to report our load
+	 * and to get new neighbors in place of those that left or refused us.
+	 * Once complete the client seeds for SEED_TIME ms, then leaves the swarm;
+	 * it still exits only after its upload neighbors are done.
+	 */
+	private static void downloadWithTracker(InetSocketAddress tracker, int clientId, String fileName, ChunkStore chunkStore, ChunkCache chunkCache, ChunkVerifier verifier, ChunkState chunkState) {
+		ClientHandler uploadListener = new ClientHandler(TYPE.UploadListener, ClientUtility.getListeningPort(), chunkState);
+		uploadListener.setClientId(clientId);
+		uploadListener.setFileName(fileName);
+		uploadListener.setChunkStore(chunkStore);
+		uploadListener.setChunkCache(chunkCache);
+		uploadListener.setNumUploadNeighbors(0);
+		int listeningPort = 0;
+		try {
+			listeningPort = uploadListener.bind();
+		} catch(IOException ie) {
+			ie.printStackTrace();
+			return;
+		}
+		uploadListener.setDaemon(true);
+		uploadListener.start();
+		System.out.println("Listening for upload neighbors on port " + listeningPort);
+		
+		int numDownloadNeighbors = ClientUtility.getNumDownloadNeighbors();
+		long announceInterval = ClientUtility.getAnnounceInterval();
+		List<ClientHandler> downloadHandlers = new CopyOnWriteArrayList<ClientHandler>();
+		// download handlers by peer id
+		Map<Integer, ClientHandler> neighbors = new HashMap<Integer, ClientHandler>();
+		// when neighbors were dropped for having nothing to download, by peer id
+		Map<Integer, Long> droppedNeighbors = new HashMap<Integer, Long>();
+		int event = Tracker.JOIN;
+		long seedUntil = 0;
+		while(true) {
+			// neighbors that left, refused us or were dropped make room for others
+			long now = System.currentTimeMillis();
+			for(Iterator<Map.Entry<Integer, ClientHandler>> it = neighbors.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Integer, ClientHandler> neighbor = it.next();
+				if(!neighbor.getValue().isAlive()) {
+					it.remove();
+					downloadHandlers.remove(neighbor.getValue());
+					if(neighbor.getValue().isDropped()) {
+						droppedNeighbors.put(neighbor.getKey(), now);
+					}
+				}
+			}
+			for(Iterator<Long> it = droppedNeighbors.values().iterator(); it.hasNext(); ) {
+				if(now - it.next() > ClientHandler.DROPPED_NEIGHBOR_PAUSE) {
+					it.remove();
+				}
+			}
+			boolean isComplete = chunkState.isDownloadCompleted();
+			if(isComplete && 0 == seedUntil) {
+				seedUntil = now + ClientUtility.getSeedTime();
+			}
+			
+			// ask for more peers than free slots, some may be neighbors already or dropped
+			int want = isComplete ? 0 : numDownloadNeighbors + neighbors.size() + droppedNeighbors.size();
+			List<Tracker.Peer> peers = new ArrayList<Tracker.Peer>();
+			try {
+				peers = Tracker.announce(tracker, fileName, event, clientId, listeningPort, uploadListener.getNumUploadHandlers(), chunkState.getNumReceived(), want);
+				event = Tracker.UPDATE;
+			} catch(IOException ie) {
+				System.err.println("Tracker unreachable: " + ie.getMessage());
+			}
+			for(Tracker.Peer peer: peers) {
+				if(neighbors.size() >= numDownloadNeighbors) {
+					break;
+				}
+				if(!neighbors.containsKey(peer.peerId) && !droppedNeighbors.containsKey(peer.peerId)) {
+					System.out.println("New download neighbor " + peer.peerId + " at " + peer.host + ":" + peer.port);
+					ClientHandler neighborDownloadHandler = newNeighborDownloadHandler(peer.port, clientId, fileName, chunkStore, verifier, chunkState, uploadListener, downloadHandlers);
+					neighborDownloadHandler.setHost(peer.host);
+					neighborDownloadHandler.setNeighborId(peer.peerId);
+					// the tracker finds another neighbor if this one goes away
+					neighborDownloadHandler.setReconnecting(false);
+					neighbors.put(peer.peerId, neighborDownloadHandler);
+					downloadHandlers.add(neighborDownloadHandler);
+					neighborDownloadHandler.start();
+				}
+			}
+			
+			if(!isComplete) {
+				chunkState.awaitComplete(announceInterval);
+				continue;
+			}
+			long seedTime = seedUntil - System.currentTimeMillis();
+			if(seedTime <= 0) {
+				break;
+			}
+			try {
+				Thread.sleep(Math.min(seedTime, announceInterval));
+			} catch(InterruptedException ie) {
+				ie.printStackTrace();
+			}
+		}
+		
+		try {
+			Tracker.announce(tracker, fileName, Tracker.LEAVE, clientId, listeningPort, 0, chunkState.getNumReceived(), 0);
+		} catch(IOException ie) {
+			System.err.println("Tracker unreachable: " + ie.getMessage());
+		}
+		System.out.println(MessageChannel.BUFFERS);
+		System.out.println(PartFileChunkStore.BUFFERS);
+		System.out.println(Metrics.getSummaryLine());
+	}
+	
+	private static ClientHandler newNeighborDownloadHandler(int port, int clientId, String fileName, ChunkStore chunkStore, ChunkVerifier verifier, ChunkState chunkState, ClientHandler uploadListener, List<ClientHandler> downloadHandlers) {
+		ClientHandler neighborDownloadHandler = new ClientHandler(TYPE.NeighborDownloadHandler, port, chunkState);
+		neighborDownloadHandler.setClientId(clientId);
+		neighborDownloadHandler.setFileName(fileName);
+		neighborDownloadHandler.setChunkStore(chunkStore);
+		neighborDownloadHandler.setChunkCache(uploadListener.getChunkCache());
+		neighborDownloadHandler.setChunkVerifier(verifier);
+		neighborDownloadHandler.setUploadHandler(uploadListener);
+		neighborDownloadHandler.setDownloadHandlers(downloadHandlers);
+		return neighborDownloadHandler;
+	}
+}
+
+enum TYPE { ServerDownloadHandler, NeighborDownloadHandler, UploadListener, NeighborUploadHandler };
+
+class ClientHandler extends Thread {
+	private static final long INITIAL_RETRY_DELAY = 100;
+	private static final long MAX_RETRY_DELAY = 5000;
+	private static final long IDLE_TIMEOUT = 5000;
+	private static final int MAX_VERIFY_ATTEMPTS = 3;
+	// how long a resumed client waits for upload neighbors, they retry at least this often
+	static final long RESUME_LINGER = 2 * MAX_RETRY_DELAY;
+	// how long a neighbor dropped for having nothing to download is not taken back
+	static final long DROPPED_NEIGHBOR_PAUSE = 2 * IDLE_TIMEOUT;
+	// how often a choked upload handler checks whether it got a slot
+	private static final long CHOKED_POLL_INTERVAL = 500;
+	
+	private TYPE type;
+	private int clientId;
+	// client id of the neighbor, 0 if not known
+	private int neighborId;
+	private String host = "localhost";
+	private int port;
+	// download side: connect again when the neighbor goes away, off for neighbors from the tracker
+	private boolean isReconnecting = true;
+	// download side: the neighbor was left for having nothing to download
+	private volatile boolean isDropped;
+	private ServerSocketChannel listener;
+	private SocketChannel connection; 
+	private volatile MessageChannel channel;
+	private String fileName;
+	private ChunkState chunkState;
+	private long fileSize;
+	private ChunkStore chunkStore;
+	// popular and just received chunks for all upload neighbors, null without CHUNK_CACHE_SIZE
+	private ChunkCache chunkCache;
+	// download side: upload listener to tell about new chunks, upload side: the listener that accepted us
+	private ClientHandler uploadHandler;
+	// download side: all download handlers of this client
+	private List<ClientHandler> downloadHandlers;
+	// download side: chunks requested from this neighbor and not received yet
+	private Deque<Integer> requestedChunks = new ArrayDeque<Integer>();
+	// download side: when each of requestedChunks was requested, in ns
+	private Map<Integer, Long> requestTimes = new HashMap<Integer, Long>();
+	// download side: size of the blocks chunks are requested in from this neighbor, 0 for whole chunks
+	private int blockSize;
+	// download side: blocks of requestedChunks not requested yet, as {chunkNum, offset, length}
+	private Deque<int[]> unrequestedBlocks = new ArrayDeque<int[]>();
+	// download side: blocks requested and not received yet, see getBlockKey
+	private Set<Long> requestedBlocks = new HashSet<Long>();
+	// download side: bytes still to come of the chunks this handler stores block by block
+	private Map<Integer, Integer> bytesLeft = new HashMap<Integer, Integer>();
+	// download side: chunks of the neighbor counted in the ChunkState
+	private BitSet countedChunks;
+	// download side: chunks of this neighbor that failed verification
+	private BitSet badChunks = new BitSet();
+	// download side: verifies chunks against the manifest, null without one
+	private ChunkVerifier verifier;
+	// server download side: verification results of chunks from the server
+	private Map<Integer, Future<Boolean>> pendingVerifications = new LinkedHashMap<Integer, Future<Boolean>>();
+	// server download side: chunks a version 3 server sent before the manifest, verified once it arrives
+	private List<Integer> unverifiedChunks = new ArrayList<Integer>();
+	// upload listener: counts down the upload neighbors expected to connect, and their handlers
+	private CountDownLatch uploadNeighborsConnected;
+	private List<ClientHandler> uploadHandlers = new CopyOnWriteArrayList<ClientHandler>();
+	// upload side: guards writes to the channel, HAVE is pushed from download threads
+	private final ReentrantLock sendLock = new ReentrantLock();
+	// upload listener: limits the rate of all uploads together, null for no limit
+	private RateLimiter uploadLimiter;
+	// upload listener: decides which upload neighbors are served, null to serve all
+	private Choker choker;
+	// upload listener: deflates chunks for all upload neighbors, null without COMPRESSION
+	private ChunkCompressor compressor;
+	// upload side: chunks the upload neighbor already knows we have
+	private BitSet reportedChunks;
+	private volatile int reportedCount;
+	private volatile boolean isHaveSubscribed;
+	
+	public ClientHandler(TYPE type, int port, ChunkState chunkState) {
+		this.type = type;
+		this.port = port;
+		this.chunkState = chunkState;
+	}
+	
+	public void setHost(String host) {
+		this.host = host;
+	}
+	
+	public void setReconnecting(boolean isReconnecting) {
+		this.isReconnecting = isReconnecting;
+	}
+	
+	public boolean isDropped() {
+		return isDropped;
+	}
+	
+	public void setClientId(int clientId) {
+		this.clientId = clientId;
+	}
+	
+	public void setNeighborId(int neighborId) {
+		this.neighborId = neighborId;
+	}
+	
+	public int getClientId() {
+		return this.clientId;
+	}
+	
+	public String getFileName() {
+		return fileName;
+	}
+
+	public void setFileName(String fileName) {
+		this.fileName = fileName;
+	}
+	
+	public ChunkStore getChunkStore() {
+		return chunkStore;
+	}
+
+	public void setChunkStore(ChunkStore chunkStore) {
+		this.chunkStore = chunkStore;
+	}
+	
+	public ChunkCache getChunkCache() {
+		return chunkCache;
+	}
+	
+	public void setChunkCache(ChunkCache chunkCache) {
+		this.chunkCache = chunkCache;
+	}
+	
+	public ChunkVerifier getChunkVerifier() {
+		return verifier;
+	}
+	
+	public void setChunkVerifier(ChunkVerifier verifier) {
+		this.verifier = verifier;
+	}
+	
+	public void setUploadHandler(ClientHandler uploadHandler) {
+		this.uploadHandler = uploadHandler;
+	}
+	
+	public void setDownloadHandlers(List<ClientHandler> downloadHandlers) {
+		this.downloadHandlers = downloadHandlers;
+	}
+	
+	public void setNumUploadNeighbors(int numUploadNeighbors) {
+		this.uploadNeighborsConnected = new CountDownLatch(numUploadNeighbors);
+	}
+	
+	// waits until the expected number of upload neighbors connected, or timeout ms unless 0
+	public void awaitUploadNeighbors(long timeout) {
+		try {
+			if(0 == timeout) {
+				uploadNeighborsConnected.await();
+			} else {
+				uploadNeighborsConnected.await(timeout, TimeUnit.MILLISECONDS);
+			}
+		} catch(InterruptedException ie) {
+			ie.printStackTrace();
+		}
+	}
+	
+	// upload listener: binds the listening port before the listener starts, returns it (port 0 picks a free one)
+	public int bind() throws IOException {
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(port));
+		port = ((InetSocketAddress) listener.getLocalAddress()).getPort();
+		return port;
+	}
+	
+	// upload listener: number of neighbors being uploaded to
+	public int getNumUploadHandlers() {
+		return uploadHandlers.size();
+	}
+	
+	// upload listener: whether the upload neighbor with the given client id may be served now
+	public boolean isUnchoked(int neighborId) {
+		if(null == choker) {
+			return true;
+		}
+		List<Integer> neighborIds = new ArrayList<Integer>();
+		for(ClientHandler uploadHandler: uploadHandlers) {
+			neighborIds.add(uploadHandler.neighborId);
+		}
+		return choker.isUnchoked(neighborId, neighborIds);
+	}
+	
+	public void setConnection(SocketChannel connection) {
+		this.connection = connection;
+	}
+	
+	// name of the peer at the other end in the metrics
+	private String getPeerName() {
+		if(TYPE.ServerDownloadHandler == type) {
+			return "Server";
+		}
+		if(0 < neighborId) {
+			return "Client " + neighborId;
+		}
+		if(TYPE.NeighborUploadHandler == type) {
+			return "port " + connection.socket().getPort();
+		}
+		return "port " + port;
+	}
+
+	public void run() {
+		switch(type) {
+			case ServerDownloadHandler: handleDownloadFromServer();
+			break;
+			case NeighborDownloadHandler: handleDownloadFromNeighbor();
+			break;
+			case UploadListener: handleUploadListener();
+			break;
+			case NeighborUploadHandler: handleUploadToNeighbor();
+			break;
+		}
+	}
+	
+	private void handleDownloadFromServer() {
+		try {
+			connection = SocketChannel.open(new InetSocketAddress(ClientUtility.getServerHost(), port));
+			System.out.println("Connected to Server on port " + port);
+			Metrics.CONNECTIONS.increment();
+			
+			channel = new MessageChannel(connection);
+			channel.answerHello(false, clientId, ClientUtility.getRequestedFile());
+
+			boolean flag = true;
+			while (flag) {
+				switch(channel.readMessage()) {
+					case Protocol.CLIENT_ID: int resumeClientId = this.clientId;
+						this.clientId = channel.getInt();
+						System.out.println("Client Id: " + this.clientId);
+						if(0 < resumeClientId && resumeClientId != this.clientId) {
+							System.err.println("Server did not resume Client " + resumeClientId + ", starting over");
+						}
+						// clients on one host each take their own port
+						if(0 < ClientUtility.getMetricsPort()) {
+							Metrics.listen(ClientUtility.getMetricsPort() + this.clientId);
+						}
+					break;
+					case Protocol.FILE_NAME: this.fileName = channel.getString();
+					System.out.println("File name: " + this.fileName);
+					break;
+					case Protocol.FILE_SIZE: this.fileSize = channel.getLong();
+					System.out.println("File size: " + fileSize);
+					break;
+					case Protocol.NUM_CHUNKS: int numChunks = channel.getInt();
+					System.out.println("Number of chunks: " + numChunks);
+					channel.setNumChunks(numChunks);
+					
+					chunkStore = ClientUtility.createChunkStore(clientId, fileName, fileSize, numChunks);
+					if(0 < ClientUtility.getChunkCacheSize()) {
+						chunkCache = new ChunkCache(ClientUtility.getChunkCacheSize());
+					}
+					chunkState.setNumChunks(numChunks);
+					if(1 == channel.getVersion()) {
+						// no manifest follows
+						openJournal("");
+					}
+					break;
+					case Protocol.CHUNK: int chunkNum = channel.getInt();
+						int chunkSize = channel.getInt();
+						receiveChunk(chunkNum, chunkSize);
+						if(Log.isDebug()) {
+							System.out.println("DOWNLOAD: Received chunk " + chunkNum + " of size " + chunkSize + " bytes from Server");
+						}
+					break;
+					case Protocol.CHUNK_SIZE: int serverChunkSize = channel.getInt();
+						System.out.println("Chunk size: " + serverChunkSize);
+						chunkState.setChunkSize(serverChunkSize, fileSize);
+					break;
+					case Protocol.MANIFEST: Manifest manifest = Manifest.fromBytes(channel.getBytes());
+						System.out.println("Manifest root: " + manifest.getRoot());
+						verifier = new ChunkVerifier(manifest, chunkStore, ClientUtility.getNumVerifyThreads());
+						// the server waits for the chunks we have before sending any, or more
+						BitSet restored = openJournal(manifest.getRoot());
+						for(int unverifiedChunkNum: unverifiedChunks) {
+							if(!restored.get(unverifiedChunkNum-1)) {
+								chunkStored(unverifiedChunkNum);
+							}
+						}
+						unverifiedChunks.clear();
+						channel.writeChunkList(restored);
+					break;
+					case Protocol.ERROR: System.err.println("Server: " + channel.getString());
+						flag = false;
+					break;
+					case Protocol.DONE: flag = false;
+					break;
+				}
+			}
+			awaitServerChunks();
+		} catch (ConnectException e) {
+			System.err.println("Connection refused !! You need to initiate a server first !!");
+		} catch (UnknownHostException unknownHost) {
+			System.err.println("You are trying to connect to an unknown host !!");
+		} catch (IOException ioException) {
+			ioException.printStackTrace();
+		} finally {
+			if(null != connection) {
+				Metrics.CONNECTIONS.decrement();
+			}
+			// Close connections
+			try {
+				if(null != channel) {
+					channel.close();
+				} else if(null != connection) {
+					connection.close();
+				}
+			} catch (IOException ioException) {
+				ioException.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Opens the journal of the download and takes back the chunks received
+	 * in an earlier run. Returns those chunks.
+	 */
+	private BitSet openJournal(String root) throws IOException {
+		File journalFile = new File(ClientUtility.ROOT_DIR, "Client" + clientId + "\\" + fileName + ".journal");
+		ChunkJournal journal = new ChunkJournal(journalFile, fileName, fileSize, chunkStore, root);
+		BitSet restored = chunkStore.restore(journal.getChunks(), journal.getChunkSize());
+		journal.retain(restored);
+		chunkState.restore(restored);
+		chunkState.setJournal(journal);
+		if(!restored.isEmpty()) {
+			System.out.println("Resumed " + restored.cardinality() + " of " + chunkStore.getNumChunks() + " chunks");
+			if(chunkState.isComplete()) {
+				System.out.println("DOWNLOAD: File download complete");
+				ClientUtility.completeDownload(chunkStore);
+				chunkState.downloadCompleted();
+			}
+		}
+		return restored;
+	}
+	
+	/**
+	 * Downloads from the neighbor until the file is complete. A lost
+	 * connection is set up again, the neighbor may have been restarted.
+	 */
+	private void handleDownloadFromNeighbor() {
+		while(true) {
+			try {
+				downloadFromNeighbor();
+				return;
+			} catch (UnknownHostException unknownHost) {
+				System.err.println("You are trying to connect to an unknown host !!");
+				return;
+			} catch (IOException ioException) {
+				ioException.printStackTrace();
+			} finally {
+				// give chunks this neighbor still owes us to the other download handlers
+				synchronized(requestedChunks) {
+					for(int chunkNum: requestedChunks) {
+						chunkState.release(chunkNum);
+					}
+					Metrics.REQUESTS_OUTSTANDING.add(-requestedChunks.size());
+					requestedChunks.clear();
+					requestTimes.clear();
+					unrequestedBlocks.clear();
+					requestedBlocks.clear();
+				}
+				// chunks stored in part, they start over wherever they are requested next
+				for(int chunkNum: bytesLeft.keySet()) {
+					chunkState.abortStore(chunkNum);
+				}
+				bytesLeft.clear();
+				if(null != countedChunks) {
+					chunkState.removeAvailable(countedChunks);
+					countedChunks = null;
+				}
+				synchronized(badChunks) {
+					badChunks.clear();
+				}
+				wakeupDownloadHandlers();
+				if(null != connection) {
+					Metrics.CONNECTIONS.decrement();
+				}
+				
+				// Close connections
+				try {
+					if(null != channel) {
+						channel.close();
+					} else if(null != connection) {
+						connection.close();
+					}
+				} catch (IOException ioException) {
+					ioException.printStackTrace();
+				}
+				channel = null;
+				connection = null;
+			}
+			
+			if(chunkState.isComplete() || !isReconnecting) {
+				return;
+			}
+			System.out.println("DOWNLOAD: Lost download neighbor " + port + ", reconnecting");
+			Metrics.RETRIES.increment();
+			try {
+				Thread.sleep(INITIAL_RETRY_DELAY);
+			} catch(InterruptedException ie) {
+				ie.printStackTrace();
+			}
+		}
+	}
+	
+	private void downloadFromNeighbor() throws IOException {
+		long retryDelay = INITIAL_RETRY_DELAY;
+		boolean connected = false;
+		while(!connected) {
+			try {
+				connection = SocketChannel.open(new InetSocketAddress(host, port));
+				System.out.println("Connected to download neighbor on port " + port);
+				Metrics.CONNECTIONS.increment();
+				connected = true;
+			} catch(ConnectException ce) {
+				if(!isReconnecting) {
+					System.out.println("Download neighbor " + port + " offline");
+					return;
+				}
+				// keep trying even once complete, the neighbor waits for us to say DONE
+				try {
+					System.out.println("Download neighbor " + port + " offline. Retry after " + retryDelay + " ms");
+					Metrics.RETRIES.increment();
+					Thread.sleep(retryDelay);
+					retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+				} catch(InterruptedException ie) {
+					ie.printStackTrace();
+				}
+			}
+		}
+		
+		// the first chunk list request goes out with the protocol negotiation
+		System.out.println("DOWNLOAD: Requesting chunk list from download neighbor " + port);
+		channel = new MessageChannel(connection);
+		channel.setNumChunks(chunkStore.getNumChunks());
+		channel.sendHello(Protocol.REQ_FOR_CHUNK_LIST);
+		if(1 < channel.getVersion()) {
+			// lets the neighbor serve us for what we give back, older peers ignore it
+			channel.writeMessage(Protocol.CLIENT_ID, clientId);
+		}
+		// chunks larger than BLOCK_SIZE are requested in blocks, if the neighbor can
+		blockSize = 0;
+		if(2 < channel.getVersion() && 0 < ClientUtility.getBlockSize() && ClientUtility.getBlockSize() < chunkState.getChunkSize()) {
+			blockSize = ClientUtility.getBlockSize();
+		}
+		
+		BitSet neighborChunks = new BitSet(chunkStore.getNumChunks());
+		channel.readChunkAvailability(neighborChunks);
+		updateAvailability(neighborChunks);
+		System.out.println("DOWNLOAD: Received chunk list from download neighbor " + port + " - " + neighborChunks.cardinality() + " chunks");
+		long lastRequest = System.currentTimeMillis();
+		while (!chunkState.isComplete()) {
+			if(0 < blockSize ? downloadBlocks(neighborChunks) : downloadChunks(neighborChunks)) {
+				lastRequest = System.currentTimeMillis();
+				continue;
+			}
+			// with a tracker the slot is better used for a neighbor that has chunks we need
+			if(!isReconnecting && System.currentTimeMillis() - lastRequest > IDLE_TIMEOUT) {
+				System.out.println("DOWNLOAD: Download neighbor " + port + " has no chunks we need, dropping it");
+				isDropped = true;
+				break;
+			}
+			
+			if(1 == channel.getVersion()) {
+				// old peers do not push HAVE, poll them
+				try {
+					Thread.sleep(1000);
+				} catch(InterruptedException ie) {
+					ie.printStackTrace();
+				}
+				if(chunkState.isComplete()) {
+					break;
+				}
+				
+				if(Log.isDebug()) {
+					System.out.println("DOWNLOAD: Requesting chunk list from download neighbor " + port);
+				}
+				channel.writeMessage(Protocol.REQ_FOR_CHUNK_LIST);
+			} else if(!channel.awaitInput(IDLE_TIMEOUT)) {
+				// woken up by another download handler, or just look again
+				continue;
+			}
+			if(!channel.readChunkAvailability(neighborChunks)) {
+				// the late reply to a cancelled request
+				continue;
+			}
+			updateAvailability(neighborChunks);
+			if(Log.isDebug()) {
+				System.out.println("DOWNLOAD: Received chunk list from download neighbor " + port + " - " + neighborChunks.cardinality() + " chunks");
+			}
+		}
+		
+		channel.writeMessage(Protocol.DONE);
+		channel.awaitClose();
+	}
+	
+	/**
+	 * Requests chunks the neighbor has, as picked by the ChunkState, keeping
+	 * up to PIPELINE_DEPTH requests outstanding so each chunk does not wait a
+	 * full round trip. Replies come back in request order, HAVE pushed in
+	 * between is added to neighborChunks. Returns false if there was nothing
+	 * to request.
+	 */
+	private boolean downloadChunks(BitSet neighborChunks) throws IOException {
+		int pipelineDepth = ClientUtility.getPipelineDepth();
+		boolean requested = false;
+		while(true) {
+			int oldestChunkNum = 0;
+			synchronized(requestedChunks) {
+				BitSet available = getAvailable(neighborChunks);
+				while(requestedChunks.size() < pipelineDepth) {
+					int chunkNum = chunkState.claimNext(available, requestedChunks);
+					if(0 == chunkNum) {
+						break;
+					}
+					if(Log.isDebug()) {
+						System.out.println("DOWNLOAD: Requesting chunk " + chunkNum + " from download neighbor " + port);
+					}
+					channel.writeMessage(Protocol.REQ_FOR_CHUNK, chunkNum);
+					requestedChunks.add(chunkNum);
+					requestTimes.put(chunkNum, System.nanoTime());
+					Metrics.REQUESTS_OUTSTANDING.increment();
+					requested = true;
+				}
+				if(requestedChunks.isEmpty()) {
+					return requested;
+				}
+				oldestChunkNum = requestedChunks.peek();
+			}
+			
+			// a cancel may take back the last request meanwhile, no reply comes then
+			if(1 < channel.getVersion() && !channel.awaitInput(IDLE_TIMEOUT)) {
+				continue;
+			}
+			int chunkSize = channel.readChunkReply(oldestChunkNum, neighborChunks);
+			if(-1 == chunkSize) {
+				updateAvailability(neighborChunks);
+				continue;
+			}
+			int chunkNum = channel.getChunkNum();
+			Long requestTime = null;
+			synchronized(requestedChunks) {
+				// a chunk cancelled after its reply started arriving is read anyway
+				if(requestedChunks.remove(chunkNum)) {
+					Metrics.REQUESTS_OUTSTANDING.decrement();
+				}
+				requestTime = requestTimes.remove(chunkNum);
+			}
+			receiveChunk(chunkNum, chunkSize);
+			if(null != requestTime) {
+				Metrics.DOWNLOAD_LATENCY.record(System.nanoTime() - requestTime);
+			}
+			updateAvailability(neighborChunks);
+			if(null != uploadHandler.choker && 0 < neighborId) {
+				uploadHandler.choker.received(neighborId, chunkSize);
+			}
+			if(Log.isDebug()) {
+				System.out.println("DOWNLOAD: Received chunk " + chunkNum + " of size " + chunkSize + " bytes from download neighbor " + port);
+			}
+		}
+	}
+	
+	/**
+	 * Like downloadChunks, but requests chunks in blocks of blockSize and
+	 * keeps up to PIPELINE_DEPTH blocks outstanding. The next chunk is only
+	 * claimed once all blocks of the last one are requested, so a slow
+	 * neighbor holds up one chunk rather than PIPELINE_DEPTH of them, and
+	 * a cancel in endgame stops the rest of a chunk instead of it arriving
+	 * in full. Blocks may come back in any order.
+	 */
+	private boolean downloadBlocks(BitSet neighborChunks) throws IOException {
+		int pipelineDepth = ClientUtility.getPipelineDepth();
+		boolean requested = false;
+		while(true) {
+			synchronized(requestedChunks) {
+				BitSet available = getAvailable(neighborChunks);
+				while(requestedBlocks.size() < pipelineDepth) {
+					if(unrequestedBlocks.isEmpty()) {
+						int chunkNum = chunkState.claimNext(available, requestedChunks);
+						if(0 == chunkNum) {
+							break;
+						}
+						if(Log.isDebug()) {
+							System.out.println("DOWNLOAD: Requesting chunk " + chunkNum + " in blocks from download neighbor " + port);
+						}
+						requestedChunks.add(chunkNum);
+						requestTimes.put(chunkNum, System.nanoTime());
+						Metrics.REQUESTS_OUTSTANDING.increment();
+						int chunkSize = chunkState.getChunkSize(chunkNum);
+						for(int offset=0; offset<chunkSize; offset+=blockSize) {
+							unrequestedBlocks.add(new int[] { chunkNum, offset, Math.min(blockSize, chunkSize - offset) });
+						}
+					}
+					int[] block = unrequestedBlocks.poll();
+					channel.writeBlockRequest(block[0], block[1], block[2]);
+					requestedBlocks.add(getBlockKey(block[0], block[1]));
+					requested = true;
+				}
+				if(requestedBlocks.isEmpty()) {
+					return requested;
+				}
+			}
+			
+			// a cancel may take back the last requests meanwhile, no reply comes then
+			if(!channel.awaitInput(IDLE_TIMEOUT)) {
+				continue;
+			}
+			int length = channel.readChunkReply(0, neighborChunks);
+			if(-1 == length) {
+				updateAvailability(neighborChunks);
+				continue;
+			}
+			if(-1 == channel.getBlockOffset()) {
+				throw new StreamCorruptedException("Expected BLOCK but received CHUNK");
+			}
+			receiveBlock(channel.getChunkNum(), channel.getBlockOffset(), length);
+			updateAvailability(neighborChunks);
+			if(null != uploadHandler.choker && 0 < neighborId) {
+				uploadHandler.choker.received(neighborId, length);
+			}
+		}
+	}
+	
+	// chunks of the neighbor to request, those it sent corrupt are left to other neighbors if any
+	private BitSet getAvailable(BitSet neighborChunks) {
+		BitSet available = neighborChunks;
+		synchronized(badChunks) {
+			for(int i = badChunks.nextSetBit(0); i >= 0; i = badChunks.nextSetBit(i+1)) {
+				if(chunkState.hasUntriedSources(i+1)) {
+					if(available == neighborChunks) {
+						available = (BitSet) neighborChunks.clone();
+					}
+					available.clear(i);
+				}
+			}
+		}
+		return available;
+	}
+	
+	private static long getBlockKey(int chunkNum, int offset) {
+		return (long) chunkNum << 32 | offset;
+	}
+	
+	// takes back the block requests of a chunk, caller holds requestedChunks
+	private void withdrawBlocks(int chunkNum) {
+		for(Iterator<int[]> it = unrequestedBlocks.iterator(); it.hasNext(); ) {
+			if(chunkNum == it.next()[0]) {
+				it.remove();
+			}
+		}
+		for(Iterator<Long> it = requestedBlocks.iterator(); it.hasNext(); ) {
+			if(chunkNum == (int) (it.next() >>> 32)) {
+				it.remove();
+			}
+		}
+	}
+	
+	// counts chunks the neighbor announced since the last call in the ChunkState
+	private void updateAvailability(BitSet neighborChunks) {
+		if(null == countedChunks) {
+			countedChunks = new BitSet(chunkStore.getNumChunks());
+		}
+		BitSet newChunks = (BitSet) neighborChunks.clone();
+		newChunks.andNot(countedChunks);
+		if(!newChunks.isEmpty()) {
+			chunkState.addAvailable(newChunks);
+			countedChunks.or(newChunks);
+		}
+	}
+	
+	/**
+	 * Called by other download handlers once they stored a chunk. If this
+	 * handler requested it too (endgame), the request is cancelled. Version 1
+	 * neighbors cannot cancel, their reply is read and dropped.
+	 */
+	public void cancel(int chunkNum) {
+		synchronized(requestedChunks) {
+			MessageChannel channel = this.channel;
+			if(null == channel || 1 == channel.getVersion() || !requestedChunks.remove(chunkNum)) {
+				return;
+			}
+			requestTimes.remove(chunkNum);
+			Metrics.REQUESTS_OUTSTANDING.decrement();
+			try {
+				if(Log.isDebug()) {
+					System.out.println("DOWNLOAD: Cancelling chunk " + chunkNum + " from download neighbor " + port);
+				}
+				if(0 < blockSize) {
+					// blocks still arriving are dropped by receiveBlock
+					withdrawBlocks(chunkNum);
+					channel.writeMessage(Protocol.CANCEL, chunkNum);
+				} else {
+					channel.cancelChunk(chunkNum);
+				}
+				// the download thread may be waiting for this very reply
+				channel.wakeup();
+			} catch(IOException ie) {
+				// the neighbor is gone, this handler finds out on its own
+			}
+		}
+	}
+	
+	/**
+	 * Waits until all chunks from the server are verified and asks the
+	 * server again for those that failed, as nobody else has them.
+	 */
+	private void awaitServerChunks() throws IOException {
+		for(int attempt=1; !pendingVerifications.isEmpty(); attempt++) {
+			List<Integer> failedChunks = new ArrayList<Integer>();
+			for(Map.Entry<Integer, Future<Boolean>> verification: pendingVerifications.entrySet()) {
+				if(!isValid(verification.getValue())) {
+					failedChunks.add(verification.getKey());
+				}
+			}
+			pendingVerifications.clear();
+			if(failedChunks.isEmpty()) {
+				break;
+			}
+			if(attempt > MAX_VERIFY_ATTEMPTS) {
+				System.err.println("Chunks " + failedChunks + " from Server keep failing verification");
+				break;
+			}
+			
+			for(int chunkNum: failedChunks) {
+				System.out.println("DOWNLOAD: Requesting chunk " + chunkNum + " from Server again");
+				Metrics.RETRIES.increment();
+				channel.writeMessage(Protocol.REQ_FOR_CHUNK, chunkNum);
+			}
+			for(int i=0; i<failedChunks.size(); i++) {
+				int chunkSize = channel.readChunkReply(failedChunks.get(i), new BitSet());
+				if(-1 == chunkSize) {
+					// not a chunk, read on
+					i--;
+					continue;
+				}
+				int chunkNum = channel.getChunkNum();
+				receiveChunk(chunkNum, chunkSize);
+				if(Log.isDebug()) {
+					System.out.println("DOWNLOAD: Received chunk " + chunkNum + " of size " + chunkSize + " bytes from Server");
+				}
+			}
+		}
+	}
+	
+	private static boolean isValid(Future<Boolean> verification) {
+		try {
+			return verification.get();
+		} catch(InterruptedException ie) {
+			ie.printStackTrace();
+		} catch(ExecutionException ee) {
+			ee.printStackTrace();
+		}
+		return false;
+	}
+	
+	// lets idle download handlers look for work again, or notice the download is complete
+	private void wakeupDownloadHandlers() {
+		if(null == downloadHandlers) {
+			return;
+		}
+		for(ClientHandler downloadHandler: downloadHandlers) {
+			MessageChannel channel = downloadHandler.channel;
+			if(null != channel) {
+				channel.wakeup();
+			}
+		}
+	}
+	
+	/**
+	 * Accepts upload neighbors and serves each of them from its own handler.
+	 * Keeps accepting after the expected neighbors connected, as restarted
+	 * neighbors connect again; the client exits once main and all handlers
+	 * are done.
+	 */
+	private void handleUploadListener() {
+		try {
+			if(null == listener) {
+				bind();
+			}
+			if(0 < ClientUtility.getMaxUploadRate()) {
+				uploadLimiter = new RateLimiter(ClientUtility.getMaxUploadRate(), null);
+			}
+			if(ClientUtility.isChokingEnabled()) {
+				choker = new Choker(ClientUtility.getNumUploadSlots(), ClientUtility.getChokeInterval(), chunkState);
+			}
+			if(ClientUtility.isCompressionEnabled()) {
+				compressor = new ChunkCompressor(chunkStore, ClientUtility.getCompressionCacheSize());
+			}
+			while(true) {
+				ClientHandler uploadHandler = new ClientHandler(TYPE.NeighborUploadHandler, port, chunkState);
+				uploadHandler.setConnection(listener.accept());
+				uploadHandler.setClientId(clientId);
+				uploadHandler.setFileName(fileName);
+				uploadHandler.setChunkStore(chunkStore);
+				uploadHandler.setChunkCache(chunkCache);
+				uploadHandler.setUploadHandler(this);
+				// keeps the client running until the neighbor is done
+				uploadHandler.setDaemon(false);
+				uploadHandlers.add(uploadHandler);
+				uploadHandler.start();
+				uploadNeighborsConnected.countDown();
+			}
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		} finally {
+			try {
+				if(null != listener) {
+					listener.close();
+				}
+			} catch (IOException ioException) {
+				ioException.printStackTrace();
+			}
+		}
+	}
+	
+	private void handleUploadToNeighbor() {
+		// requests are queued while more input is waiting, so a CANCEL can
+		// still take them out before the chunk is sent. {chunkNum} asks for
+		// a whole chunk, {chunkNum, offset, length} for a block
+		Deque<int[]> pendingRequests = new ArrayDeque<int[]>();
+		try {
+			System.out.println("Upload neighbor is connected");
+			Metrics.CONNECTIONS.increment();
+			
+			channel = new MessageChannel(connection);
+			channel.setNumChunks(chunkStore.getNumChunks());
+			channel.answerHello(true);
+			if(null != uploadHandler.uploadLimiter || 0 < ClientUtility.getMaxConnectionRate()) {
+				channel.setRateLimiter(new RateLimiter(ClientUtility.getMaxConnectionRate(), uploadHandler.uploadLimiter));
+			}
+			channel.setCompressor(uploadHandler.compressor);
+			ChunkSource chunks = null == chunkCache ? chunkStore : chunkCache.wrap(chunkStore, 0);
+			
+			boolean isUploadComplete = false;
+			while(!isUploadComplete) {
+				if(!pendingRequests.isEmpty() && !uploadHandler.isUnchoked(neighborId)) {
+					// choked, requests wait for a slot but CANCEL and DONE are still read
+					if(!channel.awaitInput(CHOKED_POLL_INTERVAL)) {
+						continue;
+					}
+				} else if(!pendingRequests.isEmpty() && !channel.awaitInput(0)) {
+					int[] request = pendingRequests.poll();
+					Metrics.REQUESTS_QUEUED.decrement();
+					int chunkNum = request[0];
+					int chunkSize = chunkStore.getChunkSize(chunkNum);
+					int offset = 1 == request.length ? 0 : request[1];
+					int length = 1 == request.length ? chunkSize : request[2];
+					long sent = length;
+					sendLock.lock();
+					try {
+						long start = System.nanoTime();
+						if(1 == request.length) {
+							if(Log.isDebug()) {
+								System.out.println("UPLOAD: Sending chunk " + chunkNum + " of size " + chunkSize + " bytes to upload neighbor");
+							}
+							sent = channel.writeChunkReply(chunkNum, chunks, chunkSize);
+						} else {
+							if(Log.isDebug()) {
+								System.out.println("UPLOAD: Sending " + length + " bytes at " + offset + " of chunk " + chunkNum + " to upload neighbor");
+							}
+							channel.writeBlockReply(chunkNum, offset, length, chunks);
+						}
+						Metrics.UPLOAD_TIME.record(System.nanoTime() - start);
+					} finally {
+						sendLock.unlock();
+					}
+					Metrics.PeerStats peerStats = Metrics.peer(getPeerName());
+					peerStats.sent(sent);
+					if(offset + length == chunkSize) {
+						peerStats.chunkSent();
+					}
+					pushHave();
+					continue;
+				}
+				
+				byte req = channel.readMessage();
+				sendLock.lock();
+				try {
+					switch(req) {
+						case Protocol.REQ_FOR_CHUNK_LIST: 
+							if(Log.isDebug()) {
+								System.out.println("UPLOAD: Received request for chunk list from upload neighbor");
+							}
+							BitSet chunkList = chunkState.getReceived();
+							if(null == reportedChunks || 1 == channel.getVersion()) {
+								channel.writeChunkList(chunkList);
+								if(Log.isDebug()) {
+									System.out.println("UPLOAD: Chunk list sent to upload neighbor - " + chunkList.cardinality() + " chunks");
+								}
+							} else {
+								sendHave();
+							}
+							reportedChunks = chunkList;
+							reportedCount = chunkList.cardinality();
+							// version 2 neighbors get every new chunk pushed from now on
+							isHaveSubscribed = 1 < channel.getVersion();
+						break;
+						
+						case Protocol.REQ_FOR_CHUNK: 
+							int chunkNum = channel.getInt();
+							if(Log.isDebug()) {
+								System.out.println("UPLOAD: Received request for chunk " + chunkNum + " from upload neighbor");
+							}
+							if(!chunkState.isReceived(chunkNum)) {
+								Metrics.REQUESTS_IGNORED.increment();
+								if(Log.isDebug()) {
+									System.out.println("UPLOAD: Ignored request for chunk " + chunkNum + ", which we do not have");
+								}
+								break;
+							}
+							pendingRequests.add(new int[] { chunkNum });
+							Metrics.REQUESTS_QUEUED.increment();
+						break;
+						
+						case Protocol.REQ_FOR_BLOCK: 
+							int[] block = { channel.getInt(), channel.getInt(), channel.getInt() };
+							if(!chunkState.isReceived(block[0])) {
+								Metrics.REQUESTS_IGNORED.increment();
+								if(Log.isDebug()) {
+									System.out.println("UPLOAD: Ignored request for a block of chunk " + block[0] + ", which we do not have");
+								}
+								break;
+							}
+							int blockChunkSize = chunkStore.getChunkSize(block[0]);
+							if(block[1] < 0 || block[2] <= 0 || block[2] > blockChunkSize - block[1]) {
+								Metrics.REQUESTS_IGNORED.increment();
+								if(Log.isDebug()) {
+									System.out.println("UPLOAD: Ignored request for " + block[2] + " bytes at " + block[1] + " of chunk " + block[0]);
+								}
+								break;
+							}
+							pendingRequests.add(block);
+							Metrics.REQUESTS_QUEUED.increment();
+						break;
+						
+						case Protocol.CANCEL: 
+							int cancelledChunkNum = channel.getInt();
+							// all blocks of the chunk, or the chunk itself
+							boolean isCancelled = false;
+							for(Iterator<int[]> it = pendingRequests.iterator(); it.hasNext(); ) {
+								if(cancelledChunkNum == it.next()[0]) {
+									it.remove();
+									Metrics.REQUESTS_QUEUED.decrement();
+									isCancelled = true;
+								}
+							}
+							if(isCancelled && Log.isDebug()) {
+								System.out.println("UPLOAD: Cancelled chunk " + cancelledChunkNum + " for upload neighbor");
+							}
+						break;
+						
+						case Protocol.CLIENT_ID: neighborId = channel.getInt();
+							System.out.println("UPLOAD: Upload neighbor is Client " + neighborId);
+						break;
+						
+						case Protocol.DONE: isUploadComplete = true;
+							isHaveSubscribed = false;
+							System.out.println("UPLOAD: File upload complete");
+						break;
+					}
+				} finally {
+					sendLock.unlock();
+				}
+				// chunks stored while we were busy
+				pushHave();
+			}
+			
+			
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		} finally {
+			isHaveSubscribed = false;
+			uploadHandler.uploadHandlers.remove(this);
+			Metrics.REQUESTS_QUEUED.add(-pendingRequests.size());
+			Metrics.CONNECTIONS.decrement();
+			
+			// Close connections
+			try {
+				if(null != channel) {
+					channel.close();
+				} else if(null != connection) {
+					connection.close();
+				}
+			} catch (IOException ioException) {
+				ioException.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Called by download handlers once a chunk is stored. On the upload
+	 * listener this passes the chunk on to every upload handler. An upload
+	 * handler pushes HAVE to its neighbor right away, or leaves it to its
+	 * upload thread if that one is busy sending.
+	 */
+	public void chunkReceived(int chunkNum) {
+		if(TYPE.UploadListener == type) {
+			for(ClientHandler uploadHandler: uploadHandlers) {
+				uploadHandler.chunkReceived(chunkNum);
+			}
+		} else {
+			pushHave();
+		}
+	}
+	
+	private void pushHave() {
+		while(isHaveSubscribed && hasUnreportedChunks() && sendLock.tryLock()) {
+			try {
+				if(isHaveSubscribed) {
+					sendHave();
+				}
+			} catch(IOException ie) {
+				System.out.println("UPLOAD: Upload neighbor is gone, stop pushing chunk updates");
+				isHaveSubscribed = false;
+			} finally {
+				sendLock.unlock();
+			}
+		}
+	}
+	
+	private boolean hasUnreportedChunks() {
+		return chunkState.getNumReceived() > reportedCount;
+	}
+	
+	// sends chunks not reported yet as HAVE, caller holds sendLock
+	private void sendHave() throws IOException {
+		BitSet chunkList = chunkState.getReceived();
+		BitSet newChunks = (BitSet) chunkList.clone();
+		newChunks.andNot(reportedChunks);
+		channel.writeHave(newChunks);
+		if(Log.isDebug()) {
+			System.out.println("UPLOAD: Chunk list update sent to upload neighbor - " + newChunks.cardinality() + " new chunks");
+		}
+		
+		reportedChunks = chunkList;
+		reportedCount = chunkList.cardinality();
+	}
+	
+	/**
+	 * Stores a chunk and has it verified. Once verified it counts as received
+	 * and is offered to upload neighbors, if not it is requested again.
+	 */
+	private void receiveChunk(int chunkNum, int chunkSize) throws IOException {
+		Metrics.PeerStats peerStats = Metrics.peer(getPeerName());
+		if(!chunkState.beginStore(chunkNum)) {
+			channel.skipChunk(chunkSize);
+			peerStats.received(chunkSize);
+			Metrics.CHUNKS_DUPLICATE.increment();
+			if(Log.isDebug()) {
+				System.out.println("DOWNLOAD: Dropped duplicate chunk " + chunkNum);
+			}
+			return;
+		}
+		try {
+			chunkStore.storeChunk(chunkNum, chunkSize, channel);
+		} catch(IOException ie) {
+			chunkState.abortStore(chunkNum);
+			throw ie;
+		}
+		peerStats.received(chunkSize);
+		peerStats.chunkReceived();
+		chunkStored(chunkNum);
+	}
+	
+	/**
+	 * Stores a block of a requested chunk. The chunk is verified once all
+	 * its blocks are stored. Blocks of chunks no longer requested from this
+	 * neighbor, or stored by another handler, are dropped.
+	 */
+	private void receiveBlock(int chunkNum, int offset, int length) throws IOException {
+		Metrics.PeerStats peerStats = Metrics.peer(getPeerName());
+		peerStats.received(length);
+		boolean isRequested;
+		synchronized(requestedChunks) {
+			isRequested = requestedBlocks.remove(getBlockKey(chunkNum, offset));
+		}
+		Integer left = bytesLeft.get(chunkNum);
+		if(isRequested && null == left) {
+			if(chunkState.beginStore(chunkNum)) {
+				left = chunkState.getChunkSize(chunkNum);
+			} else {
+				// received meanwhile or being stored by another handler, the rest is not needed either
+				Metrics.CHUNKS_DUPLICATE.increment();
+				if(Log.isDebug()) {
+					System.out.println("DOWNLOAD: Dropped duplicate chunk " + chunkNum);
+				}
+				synchronized(requestedChunks) {
+					if(requestedChunks.remove(chunkNum)) {
+						Metrics.REQUESTS_OUTSTANDING.decrement();
+						chunkState.release(chunkNum);
+					}
+					requestTimes.remove(chunkNum);
+					withdrawBlocks(chunkNum);
+				}
+				channel.writeMessage(Protocol.CANCEL, chunkNum);
+			}
+		}
+		if(!isRequested || null == left) {
+			channel.skipChunk(length);
+			return;
+		}
+		
+		try {
+			chunkStore.storeBlock(chunkNum, chunkState.getChunkSize(chunkNum), offset, length, channel);
+		} catch(IOException ie) {
+			bytesLeft.remove(chunkNum);
+			chunkState.abortStore(chunkNum);
+			throw ie;
+		}
+		left -= length;
+		if(0 < left) {
+			bytesLeft.put(chunkNum, left);
+			return;
+		}
+		bytesLeft.remove(chunkNum);
+		Long requestTime = null;
+		synchronized(requestedChunks) {
+			if(requestedChunks.remove(chunkNum)) {
+				Metrics.REQUESTS_OUTSTANDING.decrement();
+			}
+			requestTime = requestTimes.remove(chunkNum);
+		}
+		if(null != requestTime) {
+			Metrics.DOWNLOAD_LATENCY.record(System.nanoTime() - requestTime);
+		}
+		peerStats.chunkReceived();
+		if(Log.isDebug()) {
+			System.out.println("DOWNLOAD: Received chunk " + chunkNum + " of size " + chunkState.getChunkSize(chunkNum) + " bytes in blocks from download neighbor " + port);
+		}
+		chunkStored(chunkNum);
+	}
+	
+	// has a stored chunk verified, or takes it as received if there is no manifest
+	private void chunkStored(int chunkNum) {
+		if(null == verifier && TYPE.ServerDownloadHandler == type && 2 < channel.getVersion()) {
+			// sent while the server was still hashing, the manifest follows
+			unverifiedChunks.add(chunkNum);
+			return;
+		}
+		if(null == verifier) {
+			chunkVerified(chunkNum);
+			return;
+		}
+		final int storedChunkNum = chunkNum;
+		Future<Boolean> verification = verifier.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				boolean isValid = false;
+				try {
+					isValid = verifier.verify(storedChunkNum);
+				} catch(IOException ie) {
+					ie.printStackTrace();
+				}
+				if(isValid) {
+					chunkVerified(storedChunkNum);
+				} else {
+					chunkRejected(storedChunkNum);
+				}
+				return isValid;
+			}
+		});
+		if(TYPE.ServerDownloadHandler == type) {
+			pendingVerifications.put(chunkNum, verification);
+		}
+	}
+	
+	private void chunkVerified(int chunkNum) {
+		if(null != chunkCache) {
+			// before the neighbors hear of it, they are likely to ask for it next
+			try {
+				chunkCache.offer(chunkStore, 0, chunkNum);
+			} catch(IOException ie) {
+				ie.printStackTrace();
+			}
+		}
+		if(chunkState.setReceived(chunkNum, chunkStore.getChunkSize(chunkNum))) {
+			System.out.println("DOWNLOAD: File download complete");
+			ClientUtility.completeDownload(chunkStore);
+			chunkState.downloadCompleted();
+			wakeupDownloadHandlers();
+		}
+		if(null != downloadHandlers) {
+			for(ClientHandler downloadHandler: downloadHandlers) {
+				if(this != downloadHandler) {
+					downloadHandler.cancel(chunkNum);
+				}
+			}
+		}
+		if(null != uploadHandler) {
+			uploadHandler.chunkReceived(chunkNum);
+		}
+	}
+	
+	// the chunk goes back to be requested, preferably from another neighbor if this one sent it
+	private void chunkRejected(int chunkNum) {
+		System.out.println("DOWNLOAD: Chunk " + chunkNum + " failed verification");
+		Metrics.CHUNKS_REJECTED.increment();
+		if(TYPE.NeighborDownloadHandler == type) {
+			synchronized(badChunks) {
+				badChunks.set(chunkNum-1);
+			}
+		}
+		chunkState.reject(chunkNum);
+		wakeupDownloadHandlers();
+	}
 }
\ No newline at end of file
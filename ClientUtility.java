@@ -0,0 +1,402 @@
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+class ClientUtility {
+	// where clients keep their downloads and journals
+	static final String ROOT_DIR = "data\\";
+	private static final String SERVER_CONFIG_FILE = "server.cfg";
+	private static final String PEERS_CONFIG_FILE = "peers.cfg";
+	private static final String CLIENT_CONFIG_FILE = "client.cfg";
+	public static Properties prop;
+	
+	public static void loadProperties() {
+		prop = new Properties();
+		try {
+			prop.load(new FileInputStream(CLIENT_CONFIG_FILE));
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		Log.setLevel(prop.getProperty("LOG_LEVEL"));
+	}
+	
+	public static int getPipelineDepth() {
+		return Integer.parseInt(prop.getProperty("PIPELINE_DEPTH", "4"));
+	}
+	
+	// bytes per block larger chunks are requested from neighbors in, 0 for whole chunks
+	public static int getBlockSize() {
+		return Integer.parseInt(prop.getProperty("BLOCK_SIZE", "0"));
+	}
+	
+	public static ChunkSelector getChunkSelector() {
+		if("SEQUENTIAL".equals(prop.getProperty("CHUNK_SELECTION"))) {
+			return new SequentialSelector();
+		}
+		return new RarestFirstSelector(Integer.parseInt(prop.getProperty("RANDOM_FIRST_CHUNKS", "4")));
+	}
+	
+	// file to download by name or server catalog id, null for the server's default file
+	public static String getRequestedFile() {
+		return prop.getProperty("FILE");
+	}
+	
+	public static boolean isEndgameEnabled() {
+		return Boolean.parseBoolean(prop.getProperty("ENDGAME", "true"));
+	}
+	
+	public static int getNumVerifyThreads() {
+		return Integer.parseInt(prop.getProperty("VERIFY_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())));
+	}
+	
+	public static int getNumDownloadNeighbors() {
+		return Integer.parseInt(prop.getProperty("NUM_DOWNLOAD_NEIGHBORS", "3"));
+	}
+	
+	// bytes per second sent to all upload neighbors together, 0 for no limit
+	public static long getMaxUploadRate() {
+		return Long.parseLong(prop.getProperty("MAX_UPLOAD_RATE", "0"));
+	}
+	
+	// bytes per second sent to each upload neighbor, 0 for no limit
+	public static long getMaxConnectionRate() {
+		return Long.parseLong(prop.getProperty("MAX_CONNECTION_RATE", "0"));
+	}
+	
+	public static boolean isChokingEnabled() {
+		return Boolean.parseBoolean(prop.getProperty("CHOKING", "false"));
+	}
+	
+	public static int getNumUploadSlots() {
+		return Math.max(1, Integer.parseInt(prop.getProperty("UPLOAD_SLOTS", "4")));
+	}
+	
+	// DEFLATE to send chunks that shrink deflated to version 4 neighbors
+	public static boolean isCompressionEnabled() {
+		return "DEFLATE".equals(prop.getProperty("COMPRESSION"));
+	}
+	
+	public static long getCompressionCacheSize() {
+		return Long.parseLong(prop.getProperty("COMPRESSION_CACHE_SIZE", "67108864"));
+	}
+	
+	// bytes of popular and just received chunks kept in memory for uploads, 0 (default) for none
+	public static long getChunkCacheSize() {
+		return Long.parseLong(prop.getProperty("CHUNK_CACHE_SIZE", "0"));
+	}
+	
+	public static long getChokeInterval() {
+		return Long.parseLong(prop.getProperty("CHOKE_INTERVAL", "10000"));
+	}
+	
+	// client id of the peer listening on the given port in peers.cfg, 0 if none
+	public static int getPeerId(int listeningPort) {
+		BufferedReader br = null;
+		int peerId = 0;
+		try {
+			br = new BufferedReader(new FileReader(PEERS_CONFIG_FILE));
+			String line = br.readLine(); //reading header
+			while(null != (line = br.readLine())) {
+				String[] config = line.split(",");
+				if(listeningPort == Integer.parseInt(config[1].trim())) {
+					peerId = Integer.parseInt(config[0]);
+					break;
+				}
+			}
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		} finally {
+			if(null != br) {
+				try{
+					br.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return peerId;
+	}
+	
+	// first port of the metrics HTTP endpoints, 0 for none. Each client adds its client id
+	public static int getMetricsPort() {
+		return Integer.parseInt(prop.getProperty("METRICS_PORT", "0"));
+	}
+	
+	// ms between metrics summary lines, 0 for none
+	public static long getMetricsInterval() {
+		return Long.parseLong(prop.getProperty("METRICS_INTERVAL", "5000"));
+	}
+	
+	public static String getServerHost() {
+		return prop.getProperty("SERVER_HOST", "localhost");
+	}
+	
+	// host:port of the tracker to find peers through, null to use peers.cfg
+	public static InetSocketAddress getTracker() {
+		String tracker = prop.getProperty("TRACKER");
+		if(null == tracker) {
+			return null;
+		}
+		int colon = tracker.lastIndexOf(':');
+		return new InetSocketAddress(tracker.substring(0, colon), Integer.parseInt(tracker.substring(colon+1)));
+	}
+	
+	// upload listening port with a tracker, 0 for any free port
+	public static int getListeningPort() {
+		return Integer.parseInt(prop.getProperty("LISTEN_PORT", "0"));
+	}
+	
+	public static long getAnnounceInterval() {
+		return Long.parseLong(prop.getProperty("ANNOUNCE_INTERVAL", "2000"));
+	}
+	
+	// ms a complete client keeps serving new neighbors with a tracker
+	public static long getSeedTime() {
+		return Long.parseLong(prop.getProperty("SEED_TIME", "10000"));
+	}
+	
+	public static int getServerPort() {
+		BufferedReader br = null;
+		int port = 0;
+		try {
+			br = new BufferedReader(new FileReader(SERVER_CONFIG_FILE));
+			port = Integer.parseInt(br.readLine().split("=")[1]);
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		} finally {
+			if(null != br) {
+				try{
+					br.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return port;
+	}
+	
+	/**
+	 * Listening ports of the peers to download from: the first
+	 * NUM_DOWNLOAD_NEIGHBORS ports listed after the peer's own.
+	 */
+	public static List<Integer> getDownloadNeighborPorts(String[] config) {
+		List<Integer> ports = new ArrayList<Integer>();
+		int numDownloadNeighbors = getNumDownloadNeighbors();
+		for(int i=2; i<config.length && ports.size()<numDownloadNeighbors; i++) {
+			ports.add(Integer.parseInt(config[i].trim()));
+		}
+		return ports;
+	}
+	
+	// number of peers that have the given listening port among their download neighbors
+	public static int getNumUploadNeighbors(int listeningPort) {
+		BufferedReader br = null;
+		int numUploadNeighbors = 0;
+		try {
+			br = new BufferedReader(new FileReader(PEERS_CONFIG_FILE));
+			String line = br.readLine(); //reading header
+			while(null != (line = br.readLine())) {
+				if(getDownloadNeighborPorts(line.split(",")).contains(listeningPort)) {
+					numUploadNeighbors++;
+				}
+			}
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		} finally {
+			if(null != br) {
+				try{
+					br.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return numUploadNeighbors;
+	}
+	
+	public static String[] getPeerConfig(int clientId) {
+		BufferedReader br = null;
+		String[] config = null;
+		try {
+			br = new BufferedReader(new FileReader(PEERS_CONFIG_FILE));
+			String line = br.readLine(); //reading header
+			while(null != (line = br.readLine())) {
+				config = line.split(",");
+				int peerId = Integer.parseInt(config[0]);
+				if(clientId == peerId) {
+					break;
+				} else {
+					config = null;
+				}
+			}
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		} finally {
+			if(null != br) {
+				try{
+					br.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return config;
+	}
+	
+	/**
+	 * Creates where downloaded chunks go, depending on STORAGE_MODE: DIRECT
+	 * writes them into the completed file, PARTS into part files merged at the end.
+	 */
+	public static ChunkStore createChunkStore(int clientId, String fileName, long fileSize, int numChunks) throws IOException {
+		if("PARTS".equals(prop.getProperty("STORAGE_MODE"))) {
+			return new PartFileChunkStore(new File(ROOT_DIR, "Client" + clientId + "\\part"), fileName, numChunks);
+		}
+		File completedDir = new File(ROOT_DIR, "Client" + clientId + "\\completed");
+		return new PreallocatedChunkStore(new File(completedDir, fileName), fileSize, numChunks);
+	}
+	
+	public static void completeDownload(ChunkStore chunkStore) {
+		try {
+			chunkStore.complete();
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Merges part files, in order, into a file of the name without the
+	 * part number in the completed directory next to their directory. The
+	 * parts are copied in parallel, each to its offset in the merged file,
+	 * into a temporary file that is synced and then renamed, so the merged
+	 * file is either complete or not there.
+	 */
+	public static File mergeFiles(List<File> files) {
+		System.out.println("Merging chunks into one file");
+		File destFile = null;
+		RandomAccessFile merging = null;
+		ExecutorService mergers = ChunkVerifier.newThreadPool(Runtime.getRuntime().availableProcessors(), "Merger");
+		try {
+			File filePart0 = files.get(0);
+			String filePart0Name = filePart0.getName();
+			
+			File destFileDir = new File(filePart0.getParentFile().getParent(), "completed");
+			if(!destFileDir.exists()) {
+				destFileDir.mkdir();
+			}
+			
+			String destFileName = filePart0Name.substring(0, filePart0.getName().lastIndexOf('.'));
+			destFile = new File(destFileDir, destFileName);
+			File mergingFile = new File(destFileDir, destFileName + ".merging");
+			
+			// offset of every part in the merged file
+			long[] offsets = new long[files.size()];
+			long size = 0;
+			for(int i=0; i<offsets.length; i++) {
+				offsets[i] = size;
+				size += files.get(i).length();
+			}
+			merging = new RandomAccessFile(mergingFile, "rw");
+			merging.setLength(size);
+			final FileChannel channel = merging.getChannel();
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for(int i=0; i<offsets.length; i++) {
+				final File part = files.get(i);
+				final long offset = offsets[i];
+				final long length = (i+1 < offsets.length ? offsets[i+1] : size) - offset;
+				results.add(mergers.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						copyPart(part, channel, offset, length);
+						return null;
+					}
+				}));
+			}
+			for(Future<?> result: results) {
+				result.get();
+			}
+			channel.force(false);
+			merging.close();
+			merging = null;
+			Files.move(mergingFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+			System.out.println("Merged file location: " + destFileDir.getPath());
+			System.out.println("Merged file name: " + destFileName);
+		} catch(Exception e) {
+			e.printStackTrace();
+		} finally {
+			mergers.shutdown();
+			if(null != merging) {
+				try{
+					merging.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		return destFile;
+	}
+
+	// writes the size bytes of a part file at offset of dest, without moving dest's position
+	private static void copyPart(File part, FileChannel dest, long offset, long size) throws IOException {
+		FileInputStream in = new FileInputStream(part);
+		try {
+			FileChannel source = in.getChannel();
+			long position = 0;
+			while(position < size) {
+				long n = dest.transferFrom(source, offset + position, size - position);
+				if(0 == n) {
+					// the part is shorter than when the offsets were taken
+					throw new EOFException(part.getName() + " ended at " + position + " of " + size + " bytes");
+				}
+				position += n;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// part files are numbered from 001 on without gaps, so they are found in order
+	private static List<File> listOfFilesToMerge(File oneOfFiles) {
+		String tmpName = oneOfFiles.getName(); // {name}.{number}
+		String destFileName = tmpName.substring(0, tmpName.lastIndexOf('.')); // remove .{number}
+		
+		List<File> files = new ArrayList<File>();
+		for(int i=1; ; i++) {
+			File part = new File(oneOfFiles.getParentFile(), destFileName + "." + String.format("%03d", i));
+			if(!part.exists()) {
+				return files;
+			}
+			files.add(part);
+		}
+	}
+
+	public static void mergeFiles(File oneOfFiles) {
+		mergeFiles(listOfFilesToMerge(oneOfFiles));
+	}
+
+	private static List<File> listOfFilesToMerge(String oneOfFiles) {
+		return listOfFilesToMerge(new File(oneOfFiles));
+	}
+
+	public static void mergeFiles(String oneOfFiles) {
+		mergeFiles(new File(oneOfFiles));
+	}
+}
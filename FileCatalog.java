@@ -0,0 +1,176 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Files the server offers. Indexing only lists the files, their chunks and
+ * manifest are set up by open when the first client asks for a file, so a
+ * large catalog starts fast. An opened file is kept open, with its file
+ * handles, manifest and scheduler, until the server stops, since its
+ * client ids and the chunks its clients were given live there; memory and
+ * open handles grow with every file ever asked for, not only the files in
+ * use. Only a failed file is closed, and opened again for the next client.
+ *
+ * Files are those listed in the catalog file, one name per line relative to
+ * FILE_LOC, or else every file in FILE_LOC. Catalog ids count from 1 in
+ * that order, directory listings are sorted by name.
+ */
+class FileCatalog {
+	private ChunkSizePolicy chunkSizePolicy;
+	private int numClients;
+	private List<Entry> entries = new ArrayList<Entry>();
+	// entry served to clients that do not ask for a file, null if none
+	private Entry defaultEntry;
+	// opens files off the event loops, splitting and hashing runs on the hashers
+	private ExecutorService loader;
+	private ExecutorService hashers;
+	// deflates chunks off the event loops, null without COMPRESSION
+	private ExecutorService deflaters;
+	// popular chunks of all files, null without CHUNK_CACHE_SIZE
+	private ChunkCache chunkCache;
+
+	private class Entry {
+		private int id;
+		private File file;
+		private SharedFile shared;
+
+		public Entry(int id, File file) {
+			this.id = id;
+			this.file = file;
+		}
+
+		public synchronized SharedFile open() throws IOException {
+			if(null != shared && shared.isFailed()) {
+				System.out.println("Reopening " + file.getName() + ", it failed");
+				shared.close();
+				shared = null;
+			}
+			if(null == shared) {
+				System.out.println("Opening " + file.getName());
+				shared = new SharedFile(id, file, chunkSizePolicy.getChunkSize(file.length(), numClients), numClients, hashers, deflaters, chunkCache);
+			}
+			return shared;
+		}
+
+		// null if a failed file is to be opened again
+		public synchronized SharedFile getShared() {
+			return null == shared || shared.isFailed() ? null : shared;
+		}
+	}
+
+	public FileCatalog(File fileLoc, File catalogFile, ChunkSizePolicy chunkSizePolicy, int numClients) throws IOException {
+		this.chunkSizePolicy = chunkSizePolicy;
+		this.numClients = numClients;
+		this.loader = ChunkVerifier.newThreadPool(2, "CatalogLoader");
+		this.hashers = ChunkVerifier.newThreadPool(Runtime.getRuntime().availableProcessors(), "ChunkPreparer");
+		if(ServerUtility.isCompressionEnabled()) {
+			this.deflaters = ChunkVerifier.newThreadPool(Runtime.getRuntime().availableProcessors(), "ChunkDeflater");
+		}
+		if(0 < ServerUtility.getChunkCacheSize()) {
+			this.chunkCache = new ChunkCache(ServerUtility.getChunkCacheSize());
+		}
+
+		List<File> files = null == catalogFile ? listFiles(fileLoc) : readCatalog(fileLoc, catalogFile);
+		for(File file: files) {
+			entries.add(new Entry(entries.size() + 1, file));
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public String getName(int id) {
+		return entries.get(id-1).file.getName();
+	}
+
+	// sets the file served to clients that do not ask for one, returns false if there is no such file
+	public boolean setDefault(String request) {
+		defaultEntry = find(request);
+		return null != defaultEntry;
+	}
+
+	/**
+	 * Opens the requested file, by name or catalog id, or the default file
+	 * for null. Returns null if there is no such file. Opening a file the
+	 * first time only starts preparing its chunks, see SharedFile.
+	 */
+	public SharedFile open(String request) throws IOException {
+		Entry entry = null == request ? defaultEntry : find(request);
+		if(null == entry) {
+			return null;
+		}
+		return entry.open();
+	}
+
+	// returns the requested file if it is open already, without waiting
+	public SharedFile getOpen(String request) {
+		Entry entry = null == request ? defaultEntry : find(request);
+		if(null == entry) {
+			return null;
+		}
+		return entry.getShared();
+	}
+
+	public ExecutorService getLoader() {
+		return loader;
+	}
+
+	private Entry find(String request) {
+		if(null == request || request.isEmpty()) {
+			return null;
+		}
+		for(Entry entry: entries) {
+			if(entry.file.getName().equals(request)) {
+				return entry;
+			}
+		}
+		try {
+			int id = Integer.parseInt(request);
+			if(0 < id && id <= entries.size()) {
+				return entries.get(id-1);
+			}
+		} catch(NumberFormatException nfe) {
+			// not an id either
+		}
+		return null;
+	}
+
+	// regular files in dir, without the part files of SERVING_MODE=SPLIT
+	private static List<File> listFiles(final File dir) {
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && !(name.matches(".*[.]\\d{3}") && new File(dir, name.substring(0, name.length()-4)).exists());
+			}
+		});
+		if(null == files) {
+			return new ArrayList<File>();
+		}
+		Arrays.sort(files);
+		return Arrays.asList(files);
+	}
+
+	private static List<File> readCatalog(File dir, File catalogFile) throws IOException {
+		List<File> files = new ArrayList<File>();
+		BufferedReader br = new BufferedReader(new FileReader(catalogFile));
+		try {
+			String line = null;
+			while(null != (line = br.readLine())) {
+				line = line.trim();
+				if(!line.isEmpty() && !line.startsWith("//")) {
+					files.add(new File(dir, line));
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return files;
+	}
+}
@@ -0,0 +1,49 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serves chunks as offset/length ranges of the original file through a single
+ * FileChannel, so nothing is copied to disk upfront and chunk bytes go to the
+ * socket with transferTo instead of through a heap buffer.
+ */
+class FileRangeChunkSource implements ChunkSource {
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long fileSize;
+	private int chunkSize;
+	private int numChunks;
+
+	public FileRangeChunkSource(File file, int chunkSize) throws IOException {
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.fileSize = channel.size();
+		this.chunkSize = chunkSize;
+		this.numChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+	}
+
+	public int getNumChunks() {
+		return numChunks;
+	}
+
+	public int getChunkSize(int chunkNum) {
+		long offset = getOffset(chunkNum);
+		return (int) Math.min(chunkSize, fileSize - offset);
+	}
+
+	public long getOffset(int chunkNum) {
+		return (long) (chunkNum - 1) * chunkSize;
+	}
+
+	public long transferChunk(int chunkNum, long position, long count, WritableByteChannel target) throws IOException {
+		count = Math.min(count, getChunkSize(chunkNum) - position);
+		return channel.transferTo(getOffset(chunkNum) + position, count, target);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+		raf.close();
+	}
+}
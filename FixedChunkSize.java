@@ -0,0 +1,14 @@
+/**
+ * The same chunk size for every file, CHUNK_SIZE=<bytes>.
+ */
+class FixedChunkSize implements ChunkSizePolicy {
+	private int chunkSize;
+
+	public FixedChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize(long fileSize, int numClients) {
+		return chunkSize;
+	}
+}
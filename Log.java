@@ -0,0 +1,17 @@
+/**
+ * Level of the console output, LOG_LEVEL in server.cfg or client.cfg.
+ * INFO (default) prints connections, progress and problems, DEBUG also
+ * every chunk and chunk list sent or received. Callers check isDebug()
+ * before building a debug line, so those lines cost nothing at INFO.
+ */
+class Log {
+	private static boolean debug;
+
+	public static void setLevel(String level) {
+		debug = "DEBUG".equals(level);
+	}
+
+	public static boolean isDebug() {
+		return debug;
+	}
+}
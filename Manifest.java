@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 hashes of all chunks of a file and the Merkle root over them. The
+ * server builds it once every chunk is prepared and sends it to version 2
+ * clients after NUM_CHUNKS, so they can verify every chunk whichever peer
+ * it came from.
+ */
+class Manifest {
+	public static final String ALGORITHM = "SHA-256";
+	public static final int HASH_SIZE = 32;
+
+	private byte[][] hashes;
+	private byte[] root;
+
+	public Manifest(byte[][] hashes) {
+		this.hashes = hashes;
+		this.root = getMerkleRoot(hashes);
+	}
+
+	// reads a manifest as sent by toBytes and checks it against its root
+	public static Manifest fromBytes(byte[] bytes) throws StreamCorruptedException {
+		if(0 != bytes.length % HASH_SIZE || bytes.length < HASH_SIZE) {
+			throw new StreamCorruptedException("Invalid manifest size " + bytes.length);
+		}
+		byte[][] hashes = new byte[bytes.length / HASH_SIZE - 1][];
+		for(int i=0; i<hashes.length; i++) {
+			hashes[i] = Arrays.copyOfRange(bytes, (i+1) * HASH_SIZE, (i+2) * HASH_SIZE);
+		}
+		Manifest manifest = new Manifest(hashes);
+		if(!Arrays.equals(manifest.root, Arrays.copyOf(bytes, HASH_SIZE))) {
+			throw new StreamCorruptedException("Manifest does not match its root");
+		}
+		return manifest;
+	}
+
+	// root followed by the hash of every chunk
+	public byte[] toBytes() {
+		ByteBuffer buff = ByteBuffer.allocate((hashes.length + 1) * HASH_SIZE);
+		buff.put(root);
+		for(byte[] hash: hashes) {
+			buff.put(hash);
+		}
+		return buff.array();
+	}
+
+	public int getNumChunks() {
+		return hashes.length;
+	}
+
+	public String getRoot() {
+		StringBuilder sb = new StringBuilder();
+		for(byte b: root) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	public boolean verify(int chunkNum, byte[] hash) {
+		return Arrays.equals(hashes[chunkNum-1], hash);
+	}
+
+	public static byte[] hash(ChunkSource source, int chunkNum) throws IOException {
+		DigestChannel digest = new DigestChannel(newDigest());
+		long position = 0;
+		int chunkSize = source.getChunkSize(chunkNum);
+		while(position < chunkSize) {
+			position += source.transferChunk(chunkNum, position, chunkSize - position, digest);
+		}
+		return digest.getDigest().digest();
+	}
+
+	// pairs of hashes are hashed together level by level, an odd one out moves up as is
+	private static byte[] getMerkleRoot(byte[][] hashes) {
+		MessageDigest digest = newDigest();
+		if(0 == hashes.length) {
+			return digest.digest();
+		}
+		byte[][] level = hashes;
+		while(1 < level.length) {
+			byte[][] next = new byte[(level.length + 1) / 2][];
+			for(int i=0; i<next.length; i++) {
+				if(2*i + 1 < level.length) {
+					digest.update(level[2*i]);
+					digest.update(level[2*i + 1]);
+					next[i] = digest.digest();
+				} else {
+					next[i] = level[2*i];
+				}
+			}
+			level = next;
+		}
+		return level[0];
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
+
+/**
+ * Channel that feeds everything written to it into a digest, so chunks can
+ * be hashed with ChunkSource.transferChunk.
+ */
+class DigestChannel implements WritableByteChannel {
+	private MessageDigest digest;
+
+	public DigestChannel(MessageDigest digest) {
+		this.digest = digest;
+	}
+
+	public MessageDigest getDigest() {
+		return digest;
+	}
+
+	public int write(ByteBuffer src) {
+		int n = src.remaining();
+		digest.update(src);
+		return n;
+	}
+
+	public boolean isOpen() {
+		return true;
+	}
+
+	public void close() {
+	}
+}
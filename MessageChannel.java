@@ -0,0 +1,766 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Blocking channel carrying protocol messages between two peers. Messages are
+ * encoded and decoded in direct buffers in whichever version was negotiated.
+ */
+class MessageChannel implements Closeable {
+	private static final int BUFFER_SIZE = 8192;
+	// strings go with a 2 byte length
+	private static final int MAX_STRING_SIZE = 65537;
+	// input and output buffers of all channels, given back on close
+	static final BufferPool BUFFERS = new BufferPool("socket", 64);
+
+	private SocketChannel channel;
+	// the channel never blocks, as other threads write to it while awaitInput
+	// waits; reads wait for input on selector, which can be woken up, writes
+	// wait for room on writeSelector
+	private Selector selector;
+	private Selector writeSelector;
+	private ByteBuffer in = BUFFERS.acquire(BUFFER_SIZE);
+	private ByteBuffer out = BUFFERS.acquire(BUFFER_SIZE);
+	// version 1 chunk size of a chunk reply
+	private ByteBuffer chunkSizeBuff = ByteBuffer.allocate(4);
+	private int version = 1;
+	// version 1 message received during negotiation, not yet returned
+	private String pendingMessage;
+	// first request of a version 2 peer, which still comes as version 1
+	private boolean legacyRequestPending;
+	// version 1: bytes left in the current block data record
+	private int blockRemaining;
+	// version 1: fields of the current message
+	private String[] fields;
+	private int fieldIndex;
+	// version 2: end of the current frame in the input buffer
+	private int frameEnd;
+	// version 2: largest frame the peer may send, see setNumChunks
+	private int maxFrameSize = Protocol.MAX_MESSAGE_SIZE + MAX_STRING_SIZE;
+	// chunk of the last chunk reply
+	private int chunkNum;
+	// offset of the last reply in its chunk if it was a block, -1 for a whole chunk
+	private int blockOffset = -1;
+	// chunks cancelled by cancelChunk, their replies are skipped
+	private BitSet cancelledChunks = new BitSet();
+	// writes may come from different threads, close gives the output buffer back under it
+	private final Object writeLock = new Object();
+	// limits the rate chunks are sent at, null for no limit
+	private RateLimiter limiter;
+	// deflates chunk replies to version 4 peers, null to send them raw
+	private ChunkCompressor compressor;
+	// size of the deflated bytes of the chunk being read, -1 if it is raw
+	private int deflatedSize = -1;
+
+	public MessageChannel(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		this.selector = Selector.open();
+		this.writeSelector = Selector.open();
+		in.flip();
+		// every message is flushed whole, waiting to coalesce small ones only stalls pipelined requests
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+		channel.register(writeSelector, SelectionKey.OP_WRITE);
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public void setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public void setCompressor(ChunkCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Negotiates the protocol version by sending HELLO.
+	 * firstRequest is sent in version 1 right after it.
+	 */
+	public void sendHello(byte firstRequest) throws IOException {
+		ensureOutput(Protocol.MAX_MESSAGE_SIZE * 2);
+		Protocol.putStreamHeader(out);
+		Protocol.putUTF(out, Protocol.HELLO + ":" + Protocol.VERSION);
+		Protocol.putMessage(out, 1, firstRequest);
+		flush();
+
+		readStreamHeader();
+		String msg = readUTF();
+		int peerVersion = Protocol.getHelloVersion(msg);
+		if(1 < peerVersion) {
+			version = Math.min(peerVersion, Protocol.VERSION);
+		} else {
+			pendingMessage = msg;
+		}
+	}
+
+	public void answerHello(boolean requestFollows) throws IOException {
+		answerHello(requestFollows, 0, null);
+	}
+
+	/**
+	 * Negotiates the protocol version by answering HELLO, if the peer sends
+	 * one. requestFollows tells whether the peer sends its first request in
+	 * version 1 after HELLO. A restarted client passes the clientId it had
+	 * to get it back from the server, and a client may name the file it
+	 * wants, null for the server's default file.
+	 */
+	public void answerHello(boolean requestFollows, int clientId, String file) throws IOException {
+		ensureOutput(Protocol.MAX_MESSAGE_SIZE);
+		Protocol.putStreamHeader(out);
+		flush();
+
+		readStreamHeader();
+		String msg = readUTF();
+		int peerVersion = Protocol.getHelloVersion(msg);
+		if(1 < peerVersion) {
+			version = Math.min(peerVersion, Protocol.VERSION);
+			String answer = Protocol.HELLO + ":" + version;
+			if(null != file) {
+				answer += ":" + clientId + ":" + file;
+			} else if(0 < clientId) {
+				answer += ":" + clientId;
+			}
+			ensureOutput(Protocol.getUTFSize(answer));
+			Protocol.putUTF(out, answer);
+			flush();
+			legacyRequestPending = requestFollows;
+		} else {
+			pendingMessage = msg;
+		}
+	}
+
+	/**
+	 * Reads the next message and returns its opcode, 0 for unknown version 1
+	 * messages. Values are then read with getInt, getLong and getString.
+	 * DEFLATED_CHUNK comes as CHUNK, the chunk bytes are inflated as they are
+	 * read.
+	 */
+	public byte readMessage() throws IOException {
+		if(1 == version || legacyRequestPending) {
+			legacyRequestPending = false;
+			String msg = readLegacyMessage();
+			fields = msg.split(":");
+			fieldIndex = 1;
+			return Protocol.getOpcode(fields[0]);
+		}
+
+		fields = null;
+		if(frameEnd > in.position()) {
+			in.position(frameEnd);
+		}
+		fill(4);
+		int length = in.getInt();
+		// the length comes from the peer, a bad one must not size the buffer
+		if(length < 1 || length > maxFrameSize) {
+			throw new StreamCorruptedException("Bad frame length " + length);
+		}
+		fill(length);
+		frameEnd = in.position() + length;
+		byte opcode = in.get();
+		if(Protocol.DEFLATED_CHUNK == opcode) {
+			deflatedSize = in.getInt(in.position() + 8);
+			return Protocol.CHUNK;
+		}
+		return opcode;
+	}
+
+	/**
+	 * Lets frames grow to a MANIFEST of numChunks chunks, the largest frame
+	 * there is. Until then frames carry at most a string.
+	 */
+	public void setNumChunks(int numChunks) {
+		maxFrameSize = Protocol.MAX_MESSAGE_SIZE + MAX_STRING_SIZE + (numChunks + 1) * Manifest.HASH_SIZE;
+	}
+
+	public int getInt() {
+		if(null != fields) {
+			return Integer.parseInt(fields[fieldIndex++]);
+		}
+		return in.getInt();
+	}
+
+	public long getLong() {
+		if(null != fields) {
+			return Long.parseLong(fields[fieldIndex++]);
+		}
+		return in.getLong();
+	}
+
+	public String getString() {
+		if(null != fields) {
+			return fields[fieldIndex++];
+		}
+		byte[] bytes = new byte[frameEnd - in.position()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// rest of the current version 2 frame
+	public byte[] getBytes() {
+		byte[] bytes = new byte[frameEnd - in.position()];
+		in.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Reads the reply to REQ_FOR_CHUNK_LIST, or pushed HAVE, into the peer's
+	 * chunk bitfield. Returns false if a cancelled chunk came instead, it is
+	 * skipped.
+	 */
+	public boolean readChunkAvailability(BitSet peerChunks) throws IOException {
+		if(1 == version) {
+			String[] str = readLegacyMessage().split(",");
+			if(!str[0].equals("NONE")) {
+				for(String chunkId: str) {
+					peerChunks.set(Integer.parseInt(chunkId) - 1);
+				}
+			}
+			return true;
+		}
+
+		byte opcode = readMessage();
+		if(Protocol.CHUNK == opcode && skipCancelledChunk()) {
+			return false;
+		}
+		if(Protocol.BLOCK == opcode) {
+			// nothing is requested while waiting for chunk lists, a late reply to a cancelled block
+			in.getInt();
+			in.getInt();
+			skipChunk(in.getInt());
+			return false;
+		}
+		if(Protocol.BITFIELD == opcode) {
+			byte[] bytes = new byte[frameEnd - in.position()];
+			in.get(bytes);
+			peerChunks.clear();
+			peerChunks.or(BitSet.valueOf(bytes));
+		} else if(Protocol.HAVE == opcode) {
+			readHave(peerChunks);
+		} else {
+			throw new StreamCorruptedException("Expected chunk list but received " + opcode);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the reply to REQ_FOR_CHUNK or REQ_FOR_BLOCK and returns the chunk
+	 * size, or the block length for a block (see getBlockOffset). Version 1
+	 * replies do not carry the chunk number, they answer the oldest request.
+	 * Returns -1 if HAVE came first, which is added to peerChunks, or if the
+	 * reply was a cancelled chunk and got skipped.
+	 */
+	public int readChunkReply(int oldestChunkNum, BitSet peerChunks) throws IOException {
+		blockOffset = -1;
+		if(1 == version) {
+			chunkSizeBuff.clear();
+			readBlockData(chunkSizeBuff);
+			chunkSizeBuff.flip();
+			chunkNum = oldestChunkNum;
+			return chunkSizeBuff.getInt();
+		}
+
+		byte opcode = readMessage();
+		if(Protocol.HAVE == opcode) {
+			readHave(peerChunks);
+			return -1;
+		} else if(Protocol.BLOCK == opcode) {
+			chunkNum = in.getInt();
+			blockOffset = in.getInt();
+			return in.getInt();
+		} else if(Protocol.CHUNK != opcode) {
+			throw new StreamCorruptedException("Expected CHUNK but received " + opcode);
+		} else if(skipCancelledChunk()) {
+			return -1;
+		}
+		chunkNum = in.getInt();
+		return in.getInt();
+	}
+
+	public int getChunkNum() {
+		return chunkNum;
+	}
+
+	// offset of the last reply in its chunk, -1 unless it was a block
+	public int getBlockOffset() {
+		return blockOffset;
+	}
+
+	// reads chunk bytes following a chunk header
+	public void readFully(ByteBuffer buff) throws IOException {
+		if(0 <= deflatedSize) {
+			buff.put(inflate(buff.remaining()));
+		} else if(1 == version) {
+			readBlockData(buff);
+		} else {
+			readRaw(buff);
+		}
+	}
+
+	// reads chunk bytes following a chunk header straight into a file at position
+	public void readChunk(FileChannel file, long position, int chunkSize) throws IOException {
+		if(0 <= deflatedSize) {
+			ByteBuffer src = inflate(chunkSize);
+			while(src.hasRemaining()) {
+				file.write(src, position + src.position());
+			}
+			return;
+		}
+		long end = position + chunkSize;
+		while(position < end) {
+			int n = (int) (end - position);
+			if(1 == version) {
+				if(0 == blockRemaining) {
+					readBlockHeader();
+				}
+				n = Math.min(n, blockRemaining);
+				blockRemaining -= n;
+			}
+			readRaw(file, position, n);
+			position += n;
+		}
+	}
+
+	// discards chunk bytes following a chunk header
+	public void skipChunk(int chunkSize) throws IOException {
+		if(0 <= deflatedSize) {
+			// nothing to inflate
+			in.position(frameEnd);
+			chunkSize = deflatedSize;
+			deflatedSize = -1;
+		}
+		ByteBuffer skipped = BUFFERS.acquire(BUFFER_SIZE);
+		try {
+			for(int left = chunkSize; 0 < left; left -= skipped.limit()) {
+				skipped.clear();
+				skipped.limit(Math.min(left, skipped.capacity()));
+				if(1 == version) {
+					readBlockData(skipped);
+				} else {
+					readRaw(skipped);
+				}
+			}
+		} finally {
+			BUFFERS.release(skipped);
+		}
+	}
+
+	public void writeMessage(byte opcode) throws IOException {
+		synchronized(writeLock) {
+			ensureOutput(Protocol.MAX_MESSAGE_SIZE);
+			Protocol.putMessage(out, version, opcode);
+			flush();
+		}
+	}
+
+	public void writeMessage(byte opcode, int value) throws IOException {
+		synchronized(writeLock) {
+			ensureOutput(Protocol.MAX_MESSAGE_SIZE);
+			Protocol.putMessage(out, version, opcode, value);
+			flush();
+		}
+	}
+
+	// asks for length bytes of a chunk from offset on, version 3 only
+	public void writeBlockRequest(int chunkNum, int offset, int length) throws IOException {
+		synchronized(writeLock) {
+			ensureOutput(Protocol.MAX_MESSAGE_SIZE);
+			Protocol.putFrameHeader(out, Protocol.REQ_FOR_BLOCK, 12);
+			out.putInt(chunkNum);
+			out.putInt(offset);
+			out.putInt(length);
+			flush();
+		}
+	}
+
+	// withdraws a chunk request, version 2 only
+	public void cancelChunk(int chunkNum) throws IOException {
+		synchronized(cancelledChunks) {
+			cancelledChunks.set(chunkNum-1);
+		}
+		writeMessage(Protocol.CANCEL, chunkNum);
+	}
+
+	// answers REQ_FOR_CHUNK_LIST with all chunks we have
+	public void writeChunkList(BitSet chunks) throws IOException {
+		synchronized(writeLock) {
+			if(1 == version) {
+				StringBuilder sb = new StringBuilder();
+				for(int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i+1)) {
+					sb.append(i + 1).append(',');
+				}
+				String chunkList = sb.length() > 0 ? sb.substring(0, sb.length()-1) : "NONE";
+				ensureOutput(Protocol.getUTFSize(chunkList));
+				Protocol.putUTF(out, chunkList);
+			} else {
+				byte[] bytes = chunks.toByteArray();
+				ensureOutput(Protocol.MAX_MESSAGE_SIZE + bytes.length);
+				Protocol.putFrameHeader(out, Protocol.BITFIELD, bytes.length);
+				out.put(bytes);
+			}
+			flush();
+		}
+	}
+
+	// sends the chunks gained since the last BITFIELD or HAVE, version 2 only
+	public void writeHave(BitSet newChunks) throws IOException {
+		synchronized(writeLock) {
+			int count = newChunks.cardinality();
+			ensureOutput(Protocol.MAX_MESSAGE_SIZE + count * 4);
+			Protocol.putFrameHeader(out, Protocol.HAVE, 4 + count * 4);
+			out.putInt(count);
+			for(int i = newChunks.nextSetBit(0); i >= 0; i = newChunks.nextSetBit(i+1)) {
+				out.putInt(i + 1);
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Sends a chunk in reply to REQ_FOR_CHUNK straight from the chunk source,
+	 * or deflated if there is a compressor and it shrinks. Returns the bytes
+	 * the chunk took on the wire.
+	 */
+	public long writeChunkReply(int chunkNum, ChunkSource chunks, int chunkSize) throws IOException {
+		byte[] deflated = null;
+		if(null != compressor && 3 < version) {
+			deflated = compressor.getDeflated(chunkNum);
+		}
+		synchronized(writeLock) {
+			ensureOutput(Protocol.MAX_MESSAGE_SIZE);
+			if(null != deflated) {
+				Protocol.putDeflatedChunkHeader(out, chunkNum, chunkSize, deflated.length);
+				flush();
+				writeBytes(ByteBuffer.wrap(deflated));
+				Metrics.COMPRESSION_SAVED.add(chunkSize - deflated.length);
+				return deflated.length;
+			}
+			Protocol.putChunkReply(out, version, chunkNum, chunkSize);
+			flush();
+			transferChunk(chunkNum, chunks, 0, chunkSize);
+			return chunkSize;
+		}
+	}
+
+	// sends a block in reply to REQ_FOR_BLOCK straight from the chunk source, version 3 only
+	public void writeBlockReply(int chunkNum, int offset, int length, ChunkSource chunks) throws IOException {
+		synchronized(writeLock) {
+			ensureOutput(Protocol.MAX_MESSAGE_SIZE);
+			Protocol.putBlockReply(out, chunkNum, offset, length);
+			flush();
+			transferChunk(chunkNum, chunks, offset, length);
+		}
+	}
+
+	// caller holds writeLock
+	private void transferChunk(int chunkNum, ChunkSource chunks, long position, int count) throws IOException {
+		long end = position + count;
+		while(position < end) {
+			long n;
+			if(null == limiter) {
+				n = chunks.transferChunk(chunkNum, position, end - position, channel);
+			} else {
+				int granted = limiter.acquire((int) (end - position));
+				n = chunks.transferChunk(chunkNum, position, granted, channel);
+				limiter.refund(granted - (int) n);
+			}
+			position += n;
+			if(0 == n) {
+				awaitWritable();
+			}
+		}
+	}
+
+	// caller holds writeLock
+	private void writeBytes(ByteBuffer src) throws IOException {
+		while(src.hasRemaining()) {
+			int n;
+			if(null == limiter) {
+				n = channel.write(src);
+			} else {
+				int granted = limiter.acquire(src.remaining());
+				ByteBuffer grant = src.duplicate();
+				grant.limit(grant.position() + granted);
+				n = channel.write(grant);
+				limiter.refund(granted - n);
+				src.position(src.position() + n);
+			}
+			if(0 == n) {
+				awaitWritable();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the peer to close the connection after DONE, discarding
+	 * anything it pushed in the meantime. Old peers do not close, so this
+	 * returns right away for them.
+	 */
+	public void awaitClose() throws IOException {
+		if(1 == version) {
+			return;
+		}
+		channel.shutdownOutput();
+		in.clear();
+		int n;
+		while(-1 != (n = channel.read(in))) {
+			in.clear();
+			if(0 == n) {
+				awaitReadable();
+			}
+		}
+	}
+
+	/**
+	 * Waits until input from the peer is available, at most timeout ms, or
+	 * just checks for it if timeout is 0. Returns false on timeout or if
+	 * woken up by another thread.
+	 */
+	public boolean awaitInput(long timeout) throws IOException {
+		if(in.hasRemaining()) {
+			return true;
+		}
+		int n = 0 == timeout ? selector.selectNow() : selector.select(timeout);
+		selector.selectedKeys().clear();
+		return 0 < n;
+	}
+
+	// reading thread only, may also return when woken up
+	private void awaitReadable() throws IOException {
+		selector.select();
+		selector.selectedKeys().clear();
+	}
+
+	// caller holds writeLock
+	private void awaitWritable() throws IOException {
+		writeSelector.select();
+		writeSelector.selectedKeys().clear();
+	}
+
+	// makes a pending or the next awaitInput return right away
+	public synchronized void wakeup() {
+		if(selector.isOpen()) {
+			selector.wakeup();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		selector.close();
+		writeSelector.close();
+		channel.close();
+		// closed by the reading thread, writers from other threads hold writeLock
+		BUFFERS.release(in);
+		in = null;
+		synchronized(writeLock) {
+			BUFFERS.release(out);
+			out = null;
+		}
+	}
+
+	// reads the deflated bytes of the current chunk and returns them inflated to chunkSize bytes
+	private ByteBuffer inflate(int chunkSize) throws IOException {
+		ByteBuffer deflated = ByteBuffer.allocate(deflatedSize);
+		deflatedSize = -1;
+		// past deflatedSize, which callers reading the frame as CHUNK leave
+		in.position(frameEnd);
+		readRaw(deflated);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(deflated.array());
+			// one byte more shows a chunk that inflates to too much
+			byte[] chunk = new byte[chunkSize + 1];
+			int n = 0;
+			while(n < chunk.length && !inflater.finished()) {
+				int inflated = inflater.inflate(chunk, n, chunk.length - n);
+				if(0 == inflated && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += inflated;
+			}
+			if(n != chunkSize || !inflater.finished()) {
+				throw new StreamCorruptedException("Deflated chunk does not inflate to " + chunkSize + " bytes");
+			}
+			return ByteBuffer.wrap(chunk, 0, chunkSize);
+		} catch(DataFormatException dfe) {
+			throw new StreamCorruptedException("Bad deflated chunk: " + dfe.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	// skips the chunk of a CHUNK frame just read if it was cancelled
+	private boolean skipCancelledChunk() throws IOException {
+		int cancelledChunkNum = in.getInt(in.position());
+		synchronized(cancelledChunks) {
+			if(!cancelledChunks.get(cancelledChunkNum-1)) {
+				return false;
+			}
+			cancelledChunks.clear(cancelledChunkNum-1);
+		}
+		int chunkSize = in.getInt(in.position() + 4);
+		in.position(frameEnd);
+		skipChunk(chunkSize);
+		return true;
+	}
+
+	private void readHave(BitSet peerChunks) {
+		int count = in.getInt();
+		for(int i=0; i<count; i++) {
+			peerChunks.set(in.getInt() - 1);
+		}
+	}
+
+	private String readLegacyMessage() throws IOException {
+		if(null != pendingMessage) {
+			String msg = pendingMessage;
+			pendingMessage = null;
+			return msg;
+		}
+		return readUTF();
+	}
+
+	private void readStreamHeader() throws IOException {
+		fill(4);
+		Protocol.checkStreamHeader(in);
+	}
+
+	private String readUTF() throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(2);
+		readBlockData(length);
+		length.flip();
+		ByteBuffer bytes = ByteBuffer.allocate(length.getShort() & 0xffff);
+		readBlockData(bytes);
+		return new String(bytes.array(), StandardCharsets.UTF_8);
+	}
+
+	// reads version 1 data spanning any number of block data records
+	private void readBlockData(ByteBuffer dst) throws IOException {
+		int limit = dst.limit();
+		while(dst.hasRemaining()) {
+			if(0 == blockRemaining) {
+				readBlockHeader();
+			}
+			int n = Math.min(dst.remaining(), blockRemaining);
+			dst.limit(dst.position() + n);
+			readRaw(dst);
+			dst.limit(limit);
+			blockRemaining -= n;
+		}
+	}
+
+	private void readBlockHeader() throws IOException {
+		fill(2);
+		if(0x7a == in.get(in.position())) {
+			fill(5);
+		}
+		blockRemaining = Protocol.getBlockHeader(in);
+	}
+
+	// writes n bytes to file at position from buffered input first and then directly from the socket
+	private void readRaw(FileChannel file, long position, int n) throws IOException {
+		while(0 < n) {
+			if(in.hasRemaining()) {
+				ByteBuffer src = in.duplicate();
+				src.limit(src.position() + Math.min(n, in.remaining()));
+				int buffered = src.remaining();
+				while(src.hasRemaining()) {
+					file.write(src, position + src.position() - in.position());
+				}
+				in.position(in.position() + buffered);
+				position += buffered;
+				n -= buffered;
+				continue;
+			}
+			long read = file.transferFrom(channel, position, n);
+			if(0 == read) {
+				// 0 means no input yet or the end of it, fill waits for more or throws EOFException
+				fill(1);
+			}
+			position += read;
+			n -= read;
+		}
+	}
+
+	// fills dst from buffered input first and then directly from the socket
+	private void readRaw(ByteBuffer dst) throws IOException {
+		while(dst.hasRemaining() && in.hasRemaining()) {
+			int n = Math.min(dst.remaining(), in.remaining());
+			ByteBuffer src = in.duplicate();
+			src.limit(src.position() + n);
+			dst.put(src);
+			in.position(in.position() + n);
+		}
+		while(dst.hasRemaining()) {
+			int n = channel.read(dst);
+			if(-1 == n) {
+				throw new EOFException();
+			} else if(0 == n) {
+				awaitReadable();
+			}
+		}
+	}
+
+	// makes sure at least n bytes are buffered in the input buffer
+	private void fill(int n) throws IOException {
+		if(in.remaining() >= n) {
+			return;
+		}
+		if(in.capacity() < n) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(n);
+			bigger.put(in);
+			BUFFERS.release(in);
+			in = bigger;
+		} else {
+			in.compact();
+		}
+		frameEnd = 0;
+		while(in.position() < n) {
+			int read = channel.read(in);
+			if(-1 == read) {
+				throw new EOFException();
+			} else if(0 == read) {
+				awaitReadable();
+			}
+		}
+		in.flip();
+	}
+
+	private void ensureOutput(int n) throws IOException {
+		if(null == out) {
+			throw new ClosedChannelException();
+		}
+		if(out.remaining() >= n) {
+			return;
+		}
+		flush();
+		if(out.capacity() < n) {
+			BUFFERS.release(out);
+			out = ByteBuffer.allocateDirect(n);
+		}
+	}
+
+	private void flush() throws IOException {
+		out.flip();
+		while(out.hasRemaining()) {
+			if(0 == channel.write(out)) {
+				awaitWritable();
+			}
+		}
+		out.clear();
+	}
+}
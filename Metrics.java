@@ -0,0 +1,374 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Transfer metrics of this server or client process. They are updated on
+ * the transfer paths without locking and read by
+ *
+ *   - a summary line printed every METRICS_INTERVAL ms while data moves,
+ *   - GET http://localhost:<METRICS_PORT>/ answering one "name value"
+ *     line per metric, if METRICS_PORT is set,
+ *   - JMX, as p2p:type=Metrics.
+ *
+ * Peers are named "Server", "Client <id>", or "port <port>" for neighbors
+ * whose client id is not known. Throughput is over the last interval.
+ */
+class Metrics {
+	private static final int SOCKET_TIMEOUT = 1000;
+	private static final double MB = 1024 * 1024;
+
+	private static final Map<String, Counter> counters = new LinkedHashMap<String, Counter>();
+	private static final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+	private static final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	private static final ConcurrentMap<String, PeerStats> peers = new ConcurrentHashMap<String, PeerStats>();
+
+	// open connections to the server, neighbors and clients
+	static final Counter CONNECTIONS = counter("connections");
+	// chunk requests sent and not answered yet, chunks requested in blocks count once
+	static final Counter REQUESTS_OUTSTANDING = counter("requests_outstanding");
+	// chunk and block requests received and not served yet
+	static final Counter REQUESTS_QUEUED = counter("requests_queued");
+	// requests received for chunks we do not have or out of the chunk's bounds
+	static final Counter REQUESTS_IGNORED = counter("requests_ignored");
+	// connection attempts after the first and chunks asked for again
+	static final Counter RETRIES = counter("retries");
+	static final Counter CHUNKS_REJECTED = counter("chunks_rejected");
+	// chunks received from more than one neighbor in endgame
+	static final Counter CHUNKS_DUPLICATE = counter("chunks_duplicate");
+	// clients the server finished sending to
+	static final Counter CLIENTS_DONE = counter("clients_done");
+	// chunk bytes not sent thanks to COMPRESSION
+	static final Counter COMPRESSION_SAVED = counter("compression_saved_bytes");
+	// requests for whole chunks to upload served from CHUNK_CACHE_SIZE, or not
+	static final Counter CHUNK_CACHE_HITS = counter("chunk_cache_hits");
+	static final Counter CHUNK_CACHE_MISSES = counter("chunk_cache_misses");
+	// from a chunk request to the chunk being stored
+	static final Histogram DOWNLOAD_LATENCY = histogram("chunk_download_us");
+	// from the first to the last byte of a chunk, or block, sent
+	static final Histogram UPLOAD_TIME = histogram("chunk_upload_us");
+
+	private static volatile long throughputIn;
+	private static volatile long throughputOut;
+	private static volatile String summary = "";
+
+	/**
+	 * Something that goes up and down, such as the number of chunk
+	 * requests waiting, counted where it changes.
+	 */
+	static class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void decrement() {
+			value.decrementAndGet();
+		}
+
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	// a value read when the metrics are read
+	interface Gauge {
+		long get();
+	}
+
+	/**
+	 * Times in microseconds, counted in power of two buckets. Percentiles
+	 * are the upper bound of their bucket, so up to twice the real time.
+	 */
+	static class Histogram {
+		// bucket b counts times below 2^b us
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+			sum.add(micros);
+			long oldMax;
+			while(micros > (oldMax = max.get()) && !max.compareAndSet(oldMax, micros)) {
+			}
+		}
+
+		public long getCount() {
+			long count = 0;
+			for(int b=0; b<buckets.length(); b++) {
+				count += buckets.get(b);
+			}
+			return count;
+		}
+
+		public long getPercentile(double p) {
+			long rank = (long) Math.ceil(p * getCount());
+			long seen = 0;
+			for(int b=0; b<buckets.length(); b++) {
+				seen += buckets.get(b);
+				if(0 < seen && seen >= rank) {
+					return 0 == b ? 0 : Math.min((1L << b) - 1, max.get());
+				}
+			}
+			return 0;
+		}
+
+		public long getMean() {
+			long count = getCount();
+			return 0 == count ? 0 : sum.sum() / count;
+		}
+	}
+
+	// bytes and chunks moved to and from one peer
+	static class PeerStats {
+		private final LongAdder bytesIn = new LongAdder();
+		private final LongAdder bytesOut = new LongAdder();
+		private final LongAdder chunksIn = new LongAdder();
+		private final LongAdder chunksOut = new LongAdder();
+
+		public void received(long bytes) {
+			bytesIn.add(bytes);
+		}
+
+		public void sent(long bytes) {
+			bytesOut.add(bytes);
+		}
+
+		public void chunkReceived() {
+			chunksIn.increment();
+		}
+
+		public void chunkSent() {
+			chunksOut.increment();
+		}
+	}
+
+	private static Counter counter(String name) {
+		Counter counter = new Counter();
+		counters.put(name, counter);
+		return counter;
+	}
+
+	private static Histogram histogram(String name) {
+		Histogram histogram = new Histogram();
+		histograms.put(name, histogram);
+		return histogram;
+	}
+
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public static PeerStats peer(String name) {
+		PeerStats stats = peers.get(name);
+		if(null == stats) {
+			stats = new PeerStats();
+			PeerStats existing = peers.putIfAbsent(name, stats);
+			if(null != existing) {
+				stats = existing;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Starts the summary line every interval ms, 0 for none, and makes the
+	 * metrics readable over JMX.
+	 */
+	public static void start(final long interval) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMXBean() {
+				public Map<String, Long> getValues() {
+					return getSnapshot();
+				}
+
+				public String getSummary() {
+					return summary;
+				}
+			}, new ObjectName("p2p:type=Metrics"));
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		if(0 == interval) {
+			return;
+		}
+		Thread reporter = new Thread("Metrics") {
+			public void run() {
+				long lastIn = 0;
+				long lastOut = 0;
+				while(true) {
+					try {
+						Thread.sleep(interval);
+					} catch(InterruptedException ie) {
+						return;
+					}
+					long in = getTotalIn();
+					long out = getTotalOut();
+					throughputIn = (in - lastIn) * 1000 / interval;
+					throughputOut = (out - lastOut) * 1000 / interval;
+					summary = getSummaryLine();
+					// quiet while nothing moves
+					if(in != lastIn || out != lastOut) {
+						System.out.println(summary);
+					}
+					lastIn = in;
+					lastOut = out;
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Answers GET requests on port of localhost with all metrics, on a
+	 * thread of its own that does not keep the process running.
+	 */
+	public static void listen(int port) {
+		final ServerSocket listener;
+		try {
+			listener = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		} catch(IOException ie) {
+			System.err.println("Metrics not available on port " + port + ": " + ie.getMessage());
+			return;
+		}
+		System.out.println("Metrics at http://localhost:" + port + "/");
+		Thread server = new Thread("Metrics HTTP") {
+			public void run() {
+				while(true) {
+					try {
+						Socket connection = listener.accept();
+						try {
+							connection.setSoTimeout(SOCKET_TIMEOUT);
+							answer(connection);
+						} finally {
+							connection.close();
+						}
+					} catch(IOException ie) {
+						// a client that went away, or did not send a request in time
+					}
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+	}
+
+	private static void answer(Socket connection) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII));
+		// the request line and headers, whatever was asked for gets all metrics
+		String line;
+		while(null != (line = in.readLine()) && !line.isEmpty()) {
+		}
+		StringBuilder body = new StringBuilder();
+		for(Map.Entry<String, Long> metric: getSnapshot().entrySet()) {
+			body.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+		}
+		byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		OutputStream out = connection.getOutputStream();
+		out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: " + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.write(bytes);
+		out.flush();
+	}
+
+	// all metrics by name, per peer ones as name{peer="..."}
+	public static Map<String, Long> getSnapshot() {
+		Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+		snapshot.put("bytes_in", getTotalIn());
+		snapshot.put("bytes_out", getTotalOut());
+		snapshot.put("throughput_in", throughputIn);
+		snapshot.put("throughput_out", throughputOut);
+		for(Map.Entry<String, Counter> counter: counters.entrySet()) {
+			snapshot.put(counter.getKey(), counter.getValue().get());
+		}
+		for(Map.Entry<String, Gauge> gauge: gauges.entrySet()) {
+			snapshot.put(gauge.getKey(), gauge.getValue().get());
+		}
+		for(Map.Entry<String, Histogram> histogram: histograms.entrySet()) {
+			String name = histogram.getKey();
+			Histogram h = histogram.getValue();
+			snapshot.put(name + "_count", h.getCount());
+			snapshot.put(name + "_mean", h.getMean());
+			snapshot.put(name + "_p50", h.getPercentile(0.5));
+			snapshot.put(name + "_p99", h.getPercentile(0.99));
+			snapshot.put(name + "_max", h.max.get());
+		}
+		for(Map.Entry<String, PeerStats> peer: peers.entrySet()) {
+			String label = "{peer=\"" + peer.getKey() + "\"}";
+			PeerStats stats = peer.getValue();
+			snapshot.put("peer_bytes_in" + label, stats.bytesIn.sum());
+			snapshot.put("peer_bytes_out" + label, stats.bytesOut.sum());
+			snapshot.put("peer_chunks_in" + label, stats.chunksIn.sum());
+			snapshot.put("peer_chunks_out" + label, stats.chunksOut.sum());
+		}
+		return snapshot;
+	}
+
+	public static String getSummaryLine() {
+		StringBuilder sb = new StringBuilder("METRICS:");
+		sb.append(String.format(" in %.1f MB/s, out %.1f MB/s", throughputIn / MB, throughputOut / MB));
+		Gauge received = gauges.get("chunks_received");
+		Gauge total = gauges.get("chunks_total");
+		if(null != received && null != total && 0 < total.get()) {
+			sb.append(", chunks ").append(received.get()).append('/').append(total.get());
+		}
+		sb.append(", connections ").append(CONNECTIONS.get());
+		sb.append(", outstanding ").append(REQUESTS_OUTSTANDING.get());
+		sb.append(", queued ").append(REQUESTS_QUEUED.get());
+		sb.append(", retries ").append(RETRIES.get());
+		long cacheRequests = CHUNK_CACHE_HITS.get() + CHUNK_CACHE_MISSES.get();
+		if(0 < cacheRequests) {
+			sb.append(", cache hits ").append(CHUNK_CACHE_HITS.get() * 100 / cacheRequests).append('%');
+		}
+		if(0 < COMPRESSION_SAVED.get()) {
+			sb.append(String.format(", compression saved %.1f MB", COMPRESSION_SAVED.get() / MB));
+		}
+		if(0 < DOWNLOAD_LATENCY.getCount()) {
+			sb.append(", download p50 ").append(DOWNLOAD_LATENCY.getPercentile(0.5) / 1000)
+				.append(" ms p99 ").append(DOWNLOAD_LATENCY.getPercentile(0.99) / 1000).append(" ms");
+		}
+		if(0 < UPLOAD_TIME.getCount()) {
+			sb.append(", upload p50 ").append(UPLOAD_TIME.getPercentile(0.5) / 1000)
+				.append(" ms p99 ").append(UPLOAD_TIME.getPercentile(0.99) / 1000).append(" ms");
+		}
+		return sb.toString();
+	}
+
+	private static long getTotalIn() {
+		long total = 0;
+		for(PeerStats stats: peers.values()) {
+			total += stats.bytesIn.sum();
+		}
+		return total;
+	}
+
+	private static long getTotalOut() {
+		long total = 0;
+		for(PeerStats stats: peers.values()) {
+			total += stats.bytesOut.sum();
+		}
+		return total;
+	}
+}
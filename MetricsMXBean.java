@@ -0,0 +1,12 @@
+import java.util.Map;
+
+/**
+ * Metrics of this process over JMX, as p2p:type=Metrics.
+ */
+public interface MetricsMXBean {
+	// every metric by the name the HTTP endpoint uses
+	Map<String, Long> getValues();
+
+	// the last summary line
+	String getSummary();
+}
@@ -0,0 +1,38 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Serves chunks from part files, as created by ServerUtility.splitChunk.
+ */
+class PartFileChunkSource implements ChunkSource {
+	private List<File> partFiles;
+
+	public PartFileChunkSource(List<File> partFiles) {
+		this.partFiles = partFiles;
+	}
+
+	public int getNumChunks() {
+		return partFiles.size();
+	}
+
+	public int getChunkSize(int chunkNum) {
+		return (int) partFiles.get(chunkNum-1).length();
+	}
+
+	public long transferChunk(int chunkNum, long position, long count, WritableByteChannel target) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(partFiles.get(chunkNum-1), "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.transferTo(position, Math.min(count, channel.size() - position), target);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void close() throws IOException {
+	}
+}
@@ -0,0 +1,119 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Stores every chunk in its own part file, Client<id>\part\name.###, and
+ * merges the part files into the completed file at the end.
+ */
+class PartFileChunkStore implements ChunkStore {
+	// chunks on their way from the socket to a part file
+	static final BufferPool BUFFERS = new BufferPool("chunk", 8);
+
+	private File partDir;
+	private String fileName;
+	private File[] parts;
+
+	public PartFileChunkStore(File partDir, String fileName, int numChunks) {
+		this.partDir = partDir;
+		this.fileName = fileName;
+		this.parts = new File[numChunks];
+	}
+
+	public int getNumChunks() {
+		return parts.length;
+	}
+
+	public int getChunkSize(int chunkNum) {
+		return (int) parts[chunkNum-1].length();
+	}
+
+	public void storeChunk(int chunkNum, int chunkSize, MessageChannel channel) throws IOException {
+		ByteBuffer buff = BUFFERS.acquire(chunkSize);
+		try {
+			channel.readFully(buff);
+			buff.flip();
+
+			if(!partDir.exists()) {
+				partDir.mkdirs();
+			}
+			File part = getPart(chunkNum);
+			FileOutputStream fos = new FileOutputStream(part);
+			try {
+				while(buff.hasRemaining()) {
+					fos.getChannel().write(buff);
+				}
+			} finally {
+				fos.close();
+			}
+			parts[chunkNum-1] = part;
+		} finally {
+			BUFFERS.release(buff);
+		}
+	}
+
+	// blocks go straight to their offset in the part file, there is no buffer to fill
+	public void storeBlock(int chunkNum, int chunkSize, int offset, int length, MessageChannel channel) throws IOException {
+		if(!partDir.exists()) {
+			partDir.mkdirs();
+		}
+		File part = getPart(chunkNum);
+		RandomAccessFile raf = new RandomAccessFile(part, "rw");
+		try {
+			channel.readChunk(raf.getChannel(), offset, length);
+		} finally {
+			raf.close();
+		}
+		parts[chunkNum-1] = part;
+	}
+
+	public BitSet restore(BitSet chunks, int chunkSize) {
+		BitSet restored = new BitSet(parts.length);
+		for(int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i+1)) {
+			File part = getPart(i+1);
+			if(part.exists()) {
+				parts[i] = part;
+				restored.set(i);
+			}
+		}
+		return restored;
+	}
+
+	public void force(BitSet chunks) throws IOException {
+		for(int i = chunks.nextSetBit(0); 0 <= i; i = chunks.nextSetBit(i+1)) {
+			RandomAccessFile raf = new RandomAccessFile(parts[i], "rw");
+			try {
+				raf.getFD().sync();
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	private File getPart(int chunkNum) {
+		return new File(partDir.getPath(), fileName + "." + String.format("%03d", chunkNum));
+	}
+
+	public long transferChunk(int chunkNum, long position, long count, WritableByteChannel target) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(parts[chunkNum-1], "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return channel.transferTo(position, Math.min(count, channel.size() - position), target);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public File complete() {
+		return ClientUtility.mergeFiles(Arrays.asList(parts));
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,101 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.BitSet;
+
+/**
+ * Writes chunks straight from the socket to their offset in the completed
+ * file, which is allocated at its full size upfront. There is no merge step
+ * and the file is complete as soon as the last chunk is written.
+ *
+ * Version 3 servers send the CHUNK_SIZE of the file, which blocks are
+ * stored with; whole chunks carry their own size, and as all chunks except
+ * the last have the same size, the offset of a chunk follows from it.
+ */
+class PreallocatedChunkStore implements ChunkStore {
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long fileSize;
+	private int[] chunkSizes;
+	// whether the file is left from an earlier run
+	private boolean existed;
+
+	public PreallocatedChunkStore(File file, long fileSize, int numChunks) throws IOException {
+		File dir = file.getParentFile();
+		if(null != dir && !dir.exists()) {
+			dir.mkdirs();
+		}
+		this.file = file;
+		this.existed = file.length() == fileSize;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.raf.setLength(fileSize);
+		this.channel = raf.getChannel();
+		this.fileSize = fileSize;
+		this.chunkSizes = new int[numChunks];
+	}
+
+	public int getNumChunks() {
+		return chunkSizes.length;
+	}
+
+	public int getChunkSize(int chunkNum) {
+		return chunkSizes[chunkNum-1];
+	}
+
+	public long getOffset(int chunkNum, int chunkSize) {
+		if(chunkNum == chunkSizes.length) {
+			return fileSize - chunkSize;
+		}
+		return (long) (chunkNum - 1) * chunkSize;
+	}
+
+	public BitSet restore(BitSet chunks, int chunkSize) {
+		if(!existed) {
+			return new BitSet();
+		}
+		for(int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i+1)) {
+			if(i+1 == chunkSizes.length) {
+				chunkSizes[i] = (int) (fileSize - (long) i * chunkSize);
+			} else {
+				chunkSizes[i] = chunkSize;
+			}
+		}
+		return (BitSet) chunks.clone();
+	}
+
+	public void storeChunk(int chunkNum, int chunkSize, MessageChannel in) throws IOException {
+		in.readChunk(channel, getOffset(chunkNum, chunkSize), chunkSize);
+		chunkSizes[chunkNum-1] = chunkSize;
+	}
+
+	public void storeBlock(int chunkNum, int chunkSize, int offset, int length, MessageChannel in) throws IOException {
+		in.readChunk(channel, getOffset(chunkNum, chunkSize) + offset, length);
+		chunkSizes[chunkNum-1] = chunkSize;
+	}
+
+	// forces the whole file once, FileChannel cannot force a range
+	public void force(BitSet chunks) throws IOException {
+		channel.force(false);
+	}
+
+	public long transferChunk(int chunkNum, long position, long count, WritableByteChannel target) throws IOException {
+		int chunkSize = getChunkSize(chunkNum);
+		return channel.transferTo(getOffset(chunkNum, chunkSize) + position, Math.min(count, chunkSize - position), target);
+	}
+
+	public File complete() throws IOException {
+		channel.force(false);
+		System.out.println("Downloaded file location: " + file.getParent());
+		System.out.println("Downloaded file name: " + file.getName());
+		return file;
+	}
+
+	// the file stays open after complete(), chunks are still served from it
+	public void close() throws IOException {
+		channel.close();
+		raf.close();
+	}
+}
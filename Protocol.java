@@ -0,0 +1,284 @@
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire protocol shared by server and clients.
+ *
+ * Version 1 is what the original ObjectStream based peers speak: both ends
+ * start with the object stream header, messages are writeUTF strings such as
+ * "CHUNK:12:102400" and all bytes travel inside block data records.
+ *
+ * Every connection starts in version 1 with a HELLO exchange. The server
+ * sends "HELLO:<version>" right after the stream header. On links between
+ * peers the connecting peer sends it, followed by its first request. A peer
+ * that supports version 2 answers "HELLO:2" (and then answers the first
+ * request in version 2) and from then on both ends exchange binary frames
+ *
+ *   int length | byte opcode | body
+ *
+ * where length counts the opcode and body. Chunk bytes follow their CHUNK
+ * frame and are not counted in it. The first REQ_FOR_CHUNK_LIST is answered
+ * with a BITFIELD of all chunks the peer has (bit chunkNum-1 per chunk).
+ * After that the peer pushes a HAVE listing the chunks it gained as soon as
+ * it stores them, between any other replies. CANCEL withdraws a chunk
+ * request; it is only a hint, the chunk may have been sent already. The
+ * connecting peer tells its client id with CLIENT_ID after HELLO, so the
+ * other one can serve it for what it gives back; older peers ignore it.
+ *
+ * The server sends version 2 clients a MANIFEST with the chunk hashes
+ * after NUM_CHUNKS. The client answers with a BITFIELD of the chunks
+ * it already has from an earlier run, and the server only sends chunks
+ * after that. A restarted client can ask for its old client id with
+ * "HELLO:2:<clientId>", and a client picks the file it wants, by name or
+ * catalog id, with "HELLO:2:<clientId>:<file>" (clientId 0 if it has none).
+ * A file the server does not have is answered with ERROR. After DONE the client may ask the server for chunks
+ * that failed verification with REQ_FOR_CHUNK, and closes the connection
+ * when it is done.
+ *
+ * Version 3 adds blocks, byte ranges of a chunk. The server tells version 3
+ * clients the CHUNK_SIZE of the file right after NUM_CHUNKS, and with it a
+ * client can ask neighbors for a block with REQ_FOR_BLOCK (chunkNum, offset,
+ * length). The block comes back in a BLOCK frame with the same three values,
+ * its bytes following the frame. CANCEL withdraws all block requests of a
+ * chunk; replies to them may still arrive and are the requester's to drop.
+ *
+ * The server hashes a file's chunks while it already serves them, and
+ * sends the MANIFEST once all are hashed. Until then version 3 clients
+ * starting afresh get CHUNKs before the MANIFEST; they verify those when
+ * it arrives and then send their BITFIELD as usual. Resuming clients
+ * (a clientId in HELLO) and version 2 clients get nothing before it.
+ *
+ * Version 4 adds DEFLATED_CHUNK, sent in place of a CHUNK (chunkNum,
+ * chunkSize, deflatedSize) by a server or peer with COMPRESSION=DEFLATE.
+ * Its deflatedSize bytes follow, which inflate (zlib format) to chunkSize
+ * bytes. The sender picks per chunk, chunks that do not shrink go as CHUNK.
+ * Blocks are never deflated.
+ *
+ * Old peers ignore HELLO. The server falls back to version 1 when a client
+ * does not answer within HELLO_TIMEOUT, a connecting peer falls back when
+ * its first request is answered in version 1. Clients never send HELLO to
+ * the server, since an old server would reset the connection on close
+ * while that message is still unread.
+ */
+class Protocol {
+	public static final int VERSION = 4;
+	public static final int HELLO_TIMEOUT = 1000;
+	public static final String HELLO = "HELLO";
+
+	public static final byte CLIENT_ID = 1;
+	public static final byte FILE_NAME = 2;
+	public static final byte FILE_SIZE = 3;
+	public static final byte NUM_CHUNKS = 4;
+	public static final byte CHUNK = 5;
+	public static final byte DONE = 6;
+	public static final byte REQ_FOR_CHUNK_LIST = 7;
+	public static final byte BITFIELD = 8;
+	public static final byte REQ_FOR_CHUNK = 9;
+	public static final byte HAVE = 10;
+	public static final byte CANCEL = 11;
+	public static final byte MANIFEST = 12;
+	public static final byte ERROR = 13;
+	public static final byte CHUNK_SIZE = 14;
+	public static final byte REQ_FOR_BLOCK = 15;
+	public static final byte BLOCK = 16;
+	public static final byte DEFLATED_CHUNK = 17;
+
+	// version 1 message names, indexed by opcode
+	private static final String[] NAMES = { null, "CLIENT_ID", "FILE_NAME", "FILE_SIZE", "NUM_CHUNKS", "CHUNK", "DONE", "REQ_FOR_CHUNK_LIST", "BITFIELD", "REQ_FOR_CHUNK", "HAVE", "CANCEL", "MANIFEST", "ERROR", "CHUNK_SIZE", "REQ_FOR_BLOCK", "BLOCK", "DEFLATED_CHUNK" };
+
+	// upper bound of an encoded message without string values
+	public static final int MAX_MESSAGE_SIZE = 64;
+
+	private static final short STREAM_MAGIC = (short) 0xaced;
+	private static final short STREAM_VERSION = 5;
+	private static final byte TC_BLOCKDATA = 0x77;
+	private static final byte TC_BLOCKDATALONG = 0x7a;
+
+	public static String getName(byte opcode) {
+		return NAMES[opcode];
+	}
+
+	// returns 0 for unknown message names
+	public static byte getOpcode(String name) {
+		for(byte i=1; i<NAMES.length; i++) {
+			if(NAMES[i].equals(name)) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	// returns the version offered by a HELLO message, 1 for any other message
+	public static int getHelloVersion(String msg) {
+		if(null == msg || !msg.startsWith(HELLO + ":")) {
+			return 1;
+		}
+		return Integer.parseInt(msg.split(":")[1]);
+	}
+
+	// returns the client id a restarted client asks for in its HELLO answer, 0 if none
+	public static int getHelloClientId(String msg) {
+		String[] fields = msg.split(":", 4);
+		if(fields.length < 3) {
+			return 0;
+		}
+		return Integer.parseInt(fields[2]);
+	}
+
+	// returns the file a client asks for in its HELLO answer, null if none
+	public static String getHelloFile(String msg) {
+		String[] fields = msg.split(":", 4);
+		if(fields.length < 4) {
+			return null;
+		}
+		return fields[3];
+	}
+
+	public static void putStreamHeader(ByteBuffer buff) {
+		buff.putShort(STREAM_MAGIC);
+		buff.putShort(STREAM_VERSION);
+	}
+
+	public static void checkStreamHeader(ByteBuffer buff) throws StreamCorruptedException {
+		if(STREAM_MAGIC != buff.getShort() || STREAM_VERSION != buff.getShort()) {
+			throw new StreamCorruptedException("Invalid stream header");
+		}
+	}
+
+	public static void putBlockHeader(ByteBuffer buff, int length) {
+		if(length <= 0xff) {
+			buff.put(TC_BLOCKDATA);
+			buff.put((byte) length);
+		} else {
+			buff.put(TC_BLOCKDATALONG);
+			buff.putInt(length);
+		}
+	}
+
+	// reads a block header and returns the length of the block
+	public static int getBlockHeader(ByteBuffer buff) throws StreamCorruptedException {
+		byte tc = buff.get();
+		if(TC_BLOCKDATA == tc) {
+			return buff.get() & 0xff;
+		} else if(TC_BLOCKDATALONG == tc) {
+			return buff.getInt();
+		}
+		throw new StreamCorruptedException("Invalid block header " + tc);
+	}
+
+	// version 1 message as one block data record
+	public static void putUTF(ByteBuffer buff, String msg) {
+		byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
+		putBlockHeader(buff, bytes.length + 2);
+		buff.putShort((short) bytes.length);
+		buff.put(bytes);
+	}
+
+	public static int getUTFSize(String msg) {
+		return msg.getBytes(StandardCharsets.UTF_8).length + 7;
+	}
+
+	/**
+	 * Parses the stream header and HELLO answer a version 2 client opens its
+	 * connection with. Returns null and leaves buff untouched if they have not
+	 * fully arrived yet.
+	 */
+	public static String getHello(ByteBuffer buff) throws StreamCorruptedException {
+		int start = buff.position();
+		if(buff.remaining() < 8) {
+			return null;
+		}
+		checkStreamHeader(buff);
+		int blockSize = getBlockHeader(buff);
+		if(buff.remaining() < blockSize) {
+			buff.position(start);
+			return null;
+		}
+		byte[] bytes = new byte[buff.getShort()];
+		buff.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static void putFrameHeader(ByteBuffer buff, byte opcode, int bodySize) {
+		buff.putInt(bodySize + 1);
+		buff.put(opcode);
+	}
+
+	public static void putMessage(ByteBuffer buff, int version, byte opcode) {
+		if(1 == version) {
+			putUTF(buff, getName(opcode));
+		} else {
+			putFrameHeader(buff, opcode, 0);
+		}
+	}
+
+	public static void putMessage(ByteBuffer buff, int version, byte opcode, int value) {
+		if(1 == version) {
+			putUTF(buff, getName(opcode) + ":" + value);
+		} else {
+			putFrameHeader(buff, opcode, 4);
+			buff.putInt(value);
+		}
+	}
+
+	public static void putMessage(ByteBuffer buff, int version, byte opcode, long value) {
+		if(1 == version) {
+			putUTF(buff, getName(opcode) + ":" + value);
+		} else {
+			putFrameHeader(buff, opcode, 8);
+			buff.putLong(value);
+		}
+	}
+
+	public static void putMessage(ByteBuffer buff, int version, byte opcode, String value) {
+		if(1 == version) {
+			putUTF(buff, getName(opcode) + ":" + value);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			putFrameHeader(buff, opcode, bytes.length);
+			buff.put(bytes);
+		}
+	}
+
+	// chunk header as sent by the server, the chunk bytes have to follow
+	public static void putChunkHeader(ByteBuffer buff, int version, int chunkNum, int chunkSize) {
+		if(1 == version) {
+			putUTF(buff, getName(CHUNK) + ":" + chunkNum + ":" + chunkSize);
+			putBlockHeader(buff, chunkSize);
+		} else {
+			putFrameHeader(buff, CHUNK, 8);
+			buff.putInt(chunkNum);
+			buff.putInt(chunkSize);
+		}
+	}
+
+	// chunk header as sent in reply to REQ_FOR_CHUNK, the chunk bytes have to follow
+	public static void putChunkReply(ByteBuffer buff, int version, int chunkNum, int chunkSize) {
+		if(1 == version) {
+			putBlockHeader(buff, 4);
+			buff.putInt(chunkSize);
+			putBlockHeader(buff, chunkSize);
+		} else {
+			putFrameHeader(buff, CHUNK, 8);
+			buff.putInt(chunkNum);
+			buff.putInt(chunkSize);
+		}
+	}
+
+	// header of a deflated chunk, sent by the server or in reply to REQ_FOR_CHUNK, version 4 only; the deflated bytes have to follow
+	public static void putDeflatedChunkHeader(ByteBuffer buff, int chunkNum, int chunkSize, int deflatedSize) {
+		putFrameHeader(buff, DEFLATED_CHUNK, 12);
+		buff.putInt(chunkNum);
+		buff.putInt(chunkSize);
+		buff.putInt(deflatedSize);
+	}
+
+	// block header as sent in reply to REQ_FOR_BLOCK, version 3 only, the block bytes have to follow
+	public static void putBlockReply(ByteBuffer buff, int chunkNum, int offset, int length) {
+		putFrameHeader(buff, BLOCK, 12);
+		buff.putInt(chunkNum);
+		buff.putInt(offset);
+		buff.putInt(length);
+	}
+}
@@ -0,0 +1,46 @@
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Chunk with the fewest copies first, so chunks only few sources have get
+ * spread before those sources leave. Ties are broken randomly so peers do
+ * not all go for the same chunk. Until randomFirstChunks chunks are received
+ * any candidate is picked at random instead, since a rare chunk is slow to
+ * get and a new peer needs some chunk to upload soon.
+ */
+class RarestFirstSelector implements ChunkSelector {
+	private Random random = new Random();
+	private int randomFirstChunks;
+
+	public RarestFirstSelector(int randomFirstChunks) {
+		this.randomFirstChunks = randomFirstChunks;
+	}
+
+	public int select(BitSet candidates, int[] copies, int numReceived) {
+		if(numReceived < randomFirstChunks) {
+			return pick(candidates, -1, random.nextInt(candidates.cardinality()), copies);
+		}
+
+		int minCopies = Integer.MAX_VALUE;
+		int ties = 0;
+		for(int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i+1)) {
+			if(copies[i] < minCopies) {
+				minCopies = copies[i];
+				ties = 1;
+			} else if(copies[i] == minCopies) {
+				ties++;
+			}
+		}
+		return pick(candidates, minCopies, random.nextInt(ties), copies);
+	}
+
+	// returns the n-th candidate with the given number of copies, any number for -1
+	private int pick(BitSet candidates, int numCopies, int n, int[] copies) {
+		for(int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i+1)) {
+			if((-1 == numCopies || copies[i] == numCopies) && 0 == n--) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+}
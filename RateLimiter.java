@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket limiting an upload rate in bytes per second, 0 for no limit.
+ * Tokens are refilled from the time passed whenever the bucket is used, no
+ * timer thread is involved. A per-connection bucket may have a parent
+ * bucket shared by all connections, bytes are only granted if both have
+ * tokens for them.
+ *
+ * Grants are at most QUANTUM bytes, so connections sharing a bucket take
+ * turns: the server event loop moves on to the next connection after each
+ * grant, and blocked uploaders wait for tokens in arrival order.
+ */
+class RateLimiter {
+	// most bytes granted at once
+	public static final int QUANTUM = 16 * 1024;
+	// smallest grant, unless less is asked for, so tokens do not trickle out byte by byte
+	private static final int MIN_GRANT = 4 * 1024;
+	// tokens an idle bucket saves up, in ms of its rate
+	private static final long BURST_MS = 100;
+
+	private final long rate;
+	private final long capacity;
+	private final RateLimiter parent;
+	// uploaders waiting for tokens of this bucket take turns
+	private final ReentrantLock waiters = new ReentrantLock(true);
+	private long tokens;
+	private long lastRefill = System.nanoTime();
+
+	public RateLimiter(long rate, RateLimiter parent) {
+		this.rate = rate;
+		this.capacity = Math.max(rate * BURST_MS / 1000, QUANTUM);
+		this.parent = parent;
+		this.tokens = capacity;
+	}
+
+	/**
+	 * Returns how many of max bytes may be sent now, 0 if not even
+	 * MIN_GRANT of them may.
+	 */
+	public int tryAcquire(int max) {
+		int n = take(Math.min(max, QUANTUM));
+		if(0 < n && null != parent) {
+			int granted = parent.tryAcquire(n);
+			refundOwn(n - granted);
+			n = granted;
+		}
+		return n;
+	}
+
+	/**
+	 * Waits until some bytes may be sent, returns how many of max. Waits
+	 * for its own tokens first and only then in turn for the parent's, so
+	 * a connection short of its own tokens does not hold up the others.
+	 */
+	public int acquire(int max) throws IOException {
+		int n = acquireOwn(Math.min(max, QUANTUM));
+		if(null != parent) {
+			int granted = parent.acquire(n);
+			refundOwn(n - granted);
+			n = granted;
+		}
+		return n;
+	}
+
+	private int acquireOwn(int max) throws IOException {
+		waiters.lock();
+		try {
+			while(true) {
+				int n = take(max);
+				if(0 < n) {
+					return n;
+				}
+				Thread.sleep(getOwnDelay(max));
+			}
+		} catch(InterruptedException ie) {
+			throw new InterruptedIOException();
+		} finally {
+			waiters.unlock();
+		}
+	}
+
+	// gives back granted bytes that were not sent
+	public void refund(int n) {
+		refundOwn(n);
+		if(null != parent) {
+			parent.refund(n);
+		}
+	}
+
+	// ms until n bytes may be sent, at least 1
+	public long getDelay(int n) {
+		long delay = getOwnDelay(n);
+		if(null != parent) {
+			delay = Math.max(delay, parent.getDelay(n));
+		}
+		return delay;
+	}
+
+	private synchronized int take(int max) {
+		if(0 == rate) {
+			return max;
+		}
+		refill();
+		if(tokens < Math.min(max, MIN_GRANT)) {
+			return 0;
+		}
+		int n = (int) Math.min(max, tokens);
+		tokens -= n;
+		return n;
+	}
+
+	private synchronized void refundOwn(int n) {
+		if(0 != rate) {
+			tokens = Math.min(capacity, tokens + n);
+		}
+	}
+
+	private synchronized long getOwnDelay(int n) {
+		if(0 == rate) {
+			return 1;
+		}
+		refill();
+		long missing = Math.min(n, MIN_GRANT) - tokens;
+		return Math.max(1, missing * 1000 / rate);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		if(now - lastRefill >= 1000000000L) {
+			// idle for a while, a full bucket either way
+			tokens = capacity;
+			lastRefill = now;
+			return;
+		}
+		long added = (now - lastRefill) * rate / 1000000000L;
+		if(0 < added) {
+			tokens = Math.min(capacity, tokens + added);
+			// keep the remainder of a partial token for next time
+			lastRefill += added * 1000000000L / rate;
+		}
+	}
+}
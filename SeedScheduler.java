@@ -0,0 +1,143 @@
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which chunks the server sends to which client. Clients ask for
+ * their next chunk whenever their socket has room, so fast clients ask more
+ * often. Each client gets at least its share of the chunks, and past that
+ * keeps getting chunks no client got yet, so the whole file reaches the
+ * swarm as soon as possible even if some clients are slow. Every next chunk
+ * is picked by the ChunkSelector among the chunks sent to the fewest
+ * clients so far.
+ *
+ * A chunk whose transfer was cut off goes to the next client that lacks it.
+ * Chunks of a client that went away before it was done count as not sent
+ * until it comes back, and a restarted client gets the chunks it lost again.
+ *
+ * Only chunks the catalog prepared are handed out. A client whose next chunk
+ * is not prepared yet gets WAIT and asks again once more chunks are.
+ */
+class SeedScheduler {
+	// next() when the chunks left for a client are not prepared yet
+	static final int WAIT = -1;
+
+	private int numChunks;
+	private int numClients;
+	private ChunkSelector selector;
+	// number of clients each chunk was sent to
+	private int[] copies;
+	// chunks sent to each client, by client id
+	private Map<Integer, BitSet> sentChunks = new HashMap<Integer, BitSet>();
+	// chunks whose transfer was cut off, no client has them from the server
+	private BitSet releasedChunks = new BitSet();
+	// clients that went away before they were done, their chunks are not counted in copies
+	private Set<Integer> disconnectedClients = new HashSet<Integer>();
+	// chunks split and hashed, they can be sent
+	private BitSet preparedChunks = new BitSet();
+
+	public SeedScheduler(int numChunks, int numClients, ChunkSelector selector) {
+		this.numChunks = numChunks;
+		this.numClients = numClients;
+		this.selector = selector;
+		this.copies = new int[numChunks];
+	}
+
+	// chunks a client gets: numChunks/numClients, the first clients one more
+	public int getShare(int clientId) {
+		int share = numChunks / numClients;
+		if((clientId-1) % numClients < numChunks % numClients) {
+			share++;
+		}
+		return share;
+	}
+
+	/**
+	 * Returns the next chunk to send to a client that has clientChunks,
+	 * 0 once it got its share and every chunk was sent to some client,
+	 * WAIT if the chunk it should get is not prepared yet.
+	 */
+	public synchronized int next(int clientId, BitSet clientChunks) {
+		BitSet sent = sentChunks.get(clientId);
+		if(null == sent) {
+			sent = new BitSet(numChunks);
+			sentChunks.put(clientId, sent);
+		}
+		if(disconnectedClients.remove(clientId)) {
+			// back again, count its chunks; those it lost are taken care of below
+			for(int i = sent.nextSetBit(0); i >= 0; i = sent.nextSetBit(i+1)) {
+				copies[i]++;
+			}
+		}
+		
+		// sent to this client before, but lost when it was restarted
+		BitSet lost = (BitSet) sent.clone();
+		lost.andNot(clientChunks);
+		int chunkNum = 0;
+		BitSet released = (BitSet) releasedChunks.clone();
+		released.andNot(clientChunks);
+		if(!lost.isEmpty()) {
+			// counted already
+			chunkNum = lost.nextSetBit(0) + 1;
+			copies[chunkNum-1]--;
+		} else if(!released.isEmpty()) {
+			chunkNum = released.nextSetBit(0) + 1;
+			releasedChunks.clear(chunkNum-1);
+		} else {
+			int minCopies = Integer.MAX_VALUE;
+			int minPreparedCopies = Integer.MAX_VALUE;
+			for(int i = clientChunks.nextClearBit(0); i < numChunks; i = clientChunks.nextClearBit(i+1)) {
+				minCopies = Math.min(minCopies, copies[i]);
+				if(preparedChunks.get(i)) {
+					minPreparedCopies = Math.min(minPreparedCopies, copies[i]);
+				}
+			}
+			// past its share a client only gets chunks no client got yet
+			boolean isPastShare = sent.cardinality() >= getShare(clientId);
+			if(isPastShare && 0 < minCopies) {
+				return 0;
+			}
+			BitSet candidates = new BitSet(numChunks);
+			if(!isPastShare || 0 == minPreparedCopies) {
+				for(int i = preparedChunks.nextSetBit(0); i >= 0; i = preparedChunks.nextSetBit(i+1)) {
+					if(!clientChunks.get(i) && copies[i] == minPreparedCopies) {
+						candidates.set(i);
+					}
+				}
+			}
+			if(candidates.isEmpty()) {
+				// the client lacks chunks, none of them prepared yet
+				return Integer.MAX_VALUE == minCopies ? 0 : WAIT;
+			}
+			chunkNum = selector.select(candidates, copies, clientChunks.cardinality());
+		}
+		copies[chunkNum-1]++;
+		sent.set(chunkNum-1);
+		return chunkNum;
+	}
+
+	// the chunk can be sent
+	public synchronized void prepared(int chunkNum) {
+		preparedChunks.set(chunkNum-1);
+	}
+
+	// the chunk did not fully reach the client
+	public synchronized void release(int clientId, int chunkNum) {
+		copies[chunkNum-1]--;
+		sentChunks.get(clientId).clear(chunkNum-1);
+		releasedChunks.set(chunkNum-1);
+	}
+
+	// the client went away before it was done, its chunks may never reach the swarm
+	public synchronized void disconnect(int clientId) {
+		BitSet sent = sentChunks.get(clientId);
+		if(null == sent || !disconnectedClients.add(clientId)) {
+			return;
+		}
+		for(int i = sent.nextSetBit(0); i >= 0; i = sent.nextSetBit(i+1)) {
+			copies[i]--;
+		}
+	}
+}
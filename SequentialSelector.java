@@ -0,0 +1,10 @@
+import java.util.BitSet;
+
+/**
+ * Lowest chunk number first, the order chunks used to be requested in.
+ */
+class SequentialSelector implements ChunkSelector {
+	public int select(BitSet candidates, int[] copies, int numReceived) {
+		return candidates.nextSetBit(0) + 1;
+	}
+}
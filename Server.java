@@ -1,243 +1,783 @@
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
-import java.util.Scanner;
-
-public class Server {
-
-	public static void main(String[] args) throws IOException {
-		System.out.println("Server Started !!");
-		
-		ServerUtility.loadProperties();
-		String fileLoc = ServerUtility.getFileLoc();
-		int chunkSize = ServerUtility.getChunkSize();
-		int sPort = ServerUtility.getPort();
-		int numClients = ServerUtility.getNumClients();
-		
-		Scanner sc = new Scanner(System.in);
-		System.out.println("Make sure the file to be uploaded exits at location " + fileLoc);
-		System.out.println("Enter file name: ");
-		String fileName = sc.nextLine();
-		sc.close();
-		
-		File file = new File(fileLoc, fileName);
-		long fileSize = file.length();
-		
-		List<File> partFiles = ServerUtility.splitFileIntoChunks(file, chunkSize);
-			
-		System.out.println("File name: " + fileName);
-		System.out.println("File size: " + fileSize);
-		System.out.println("Number of chunks: " + partFiles.size());
-		
-		ServerSocket listener = new ServerSocket(sPort);
-		int clientNum = 1;
-		try {
-			while (clientNum <= 5) {
-				new ServerHandler(listener.accept(), clientNum, file.getName(), fileSize, numClients, partFiles).start();
-				System.out.println("Client " + clientNum + " connected to Server !!");
-				clientNum++;
-			}
-		} finally {
-			listener.close();
-		}
-	}
-}
-
-/**
- * A handler thread class. Handlers are spawned from the listening loop and
- * are responsible for dealing with a single client's requests.
- */
-class ServerHandler extends Thread {
-	private Socket connection;
-	private ObjectInputStream is; 
-	private ObjectOutputStream os; 
-	private int clientId;
-	private String filename;
-	private long fileSize;
-	private int numClients;
-	private List<File> partFiles;
-
-	public ServerHandler(Socket connection, int clientId, String filename, long fileSize, int numClients, List<File> partFiles) {
-		this.connection = connection;
-		this.clientId = clientId;
-		this.filename = filename;
-		this.fileSize = fileSize;
-		this.numClients = numClients;
-		this.partFiles = partFiles;
-	}
-
-	public void run() {
-		int numChunks = partFiles.size();
-		try {
-			// initialize Input and Output streams
-			os = new ObjectOutputStream(connection.getOutputStream());
-			os.flush();
-			is = new ObjectInputStream(connection.getInputStream());
-			
-			sendMessage("CLIENT_ID:" + clientId);
-			sendMessage("FILE_NAME:" + filename);
-			sendMessage("FILE_SIZE:" + fileSize);
-			sendMessage("NUM_CHUNKS:" + numChunks);
-			
-			File chunk = null;
-			int chunkNum = clientId;
-			while(chunkNum <= numChunks) {
-				chunk = partFiles.get(chunkNum-1);
-				
-				int chunkSize = (int) chunk.length();
-				sendMessage("CHUNK:" + chunkNum + ":" + chunkSize);
-				
-				System.out.println("Sending chunk " + chunkNum + " of size " + chunkSize + " bytes to Client " + clientId);
-				sendChunk(chunk, chunkSize);
-				
-				chunkNum += numClients;
-			}
-			sendMessage("DONE");
-			System.out.println("Finished sending to Client " + clientId);
-		} catch (IOException ioException) {
-			System.out.println("Disconnect with Client " + clientId);
-		} finally {
-			// Close connections
-			try {
-				if(null != is) {
-					is.close();
-				}
-				if(null != os) {
-					os.close();
-				}
-				if(null != connection) {
-					connection.close();
-				}
-			} catch (IOException ioException) {
-				System.out.println("Disconnect with Client " + clientId);
-			}
-		}
-	}
-
-	// send a message to the output stream
-	public void sendMessage(String msg) {
-		try {
-			os.writeUTF(msg);
-			os.flush();
-		} catch (IOException ioException) {
-			ioException.printStackTrace();
-		}
-	}
-	
-	public void sendChunk(File chunk, int chunkSize) {
-		FileInputStream fis = null;
-		BufferedInputStream bis = null;
-		byte[] buff = null;
-		
-		try {
-			buff = new byte[chunkSize];
-			fis = new FileInputStream(chunk);
-			bis = new BufferedInputStream(fis);
-			
-			bis.read(buff, 0, chunkSize);
-			os.write(buff, 0, chunkSize);
-			
-			os.flush();
-		} catch (IOException ioException) {
-			ioException.printStackTrace();
-		} finally {
-			try {
-				if(null != bis) {
-					bis.close();
-				}
-				if(null != fis) {
-					fis.close();
-				}
-			} catch(IOException ie) {
-				ie.printStackTrace();
-			}
-		}
-	}
-}
-
-class ServerUtility {
-	private static final String CONFIG_FILE = "server.cfg";
-	public static Properties prop;
-	
-	public static void loadProperties() {
-		prop = new Properties();
-		try {
-			prop.load(new FileInputStream(CONFIG_FILE));
-		} catch(Exception e) {
-			e.printStackTrace();
-		}
-	}
-	
-	public static int getPort() {
-		return Integer.parseInt(prop.getProperty("PORT"));
-	}
-	
-	public static int getNumClients() {
-		return Integer.parseInt(prop.getProperty("NUM_CLIENTS"));
-	}
-	
-	public static int getChunkSize() {
-		return Integer.parseInt(prop.getProperty("CHUNK_SIZE"));
-	}
-	
-	public static String getFileLoc() {
-		return prop.getProperty("FILE_LOC");
-	}
-	
-	/**
-	 * @param file: file name & location
-	 * @param chunkSize: chunk size in bytes
-	 */
-	public static List<File> splitFileIntoChunks(File file, int chunkSize) {
-		int partCounter = 1;
-		byte[] buffer = new byte[chunkSize];
-		List<File> partFiles = new ArrayList<File>();
-
-		BufferedInputStream bis = null;
-		FileOutputStream out = null;
-		try {
-			bis = new BufferedInputStream(new FileInputStream(file));
-			String name = file.getName();
-
-			int tmp = 0;
-			while ((tmp = bis.read(buffer)) > 0) {
-				// write each chunk of data into separate file with different number in name
-				File newFile = new File(file.getParent(), name + "." + String.format("%03d", partCounter++));
-				out = new FileOutputStream(newFile);
-				out.write(buffer, 0, tmp);// tmp is chunk size
-				partFiles.add(newFile);
-			}
-		} catch(Exception e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if(null != bis) {
-					bis.close();
-				}
-				if(null != out) {
-					out.close();
-				}
-			} catch(IOException ie) {
-				ie.printStackTrace();
-			}
-		}
-		
-		return partFiles;
-	}
-	
-	public static void removeSplitFiles(File file, int numChunks) {
-		for(int i=1; i<=numChunks; i++) {
-			File partFile = new File(file.getParent(), file.getName() + "." + String.format("%03d", i));
-			partFile.delete();
-		}
-	}
-}
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class Server {
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("Server Started !!");
+		
+		ServerUtility.loadProperties();
+		Metrics.start(ServerUtility.getMetricsInterval());
+		if(0 < ServerUtility.getMetricsPort()) {
+			Metrics.listen(ServerUtility.getMetricsPort());
+		}
+		String fileLoc = ServerUtility.getFileLoc();
+		ChunkSizePolicy chunkSizePolicy = ServerUtility.getChunkSizePolicy();
+		int sPort = ServerUtility.getPort();
+		int numClients = ServerUtility.getNumClients();
+		
+		FileCatalog catalog = new FileCatalog(new File(fileLoc), ServerUtility.getCatalogFile(), chunkSizePolicy, numClients);
+		System.out.println("Files at " + fileLoc + ":");
+		for(int id=1; id<=catalog.size(); id++) {
+			System.out.println(id + ": " + catalog.getName(id));
+		}
+		
+		// clients that do not ask for a file, such as old clients, get the default file
+		String defaultFile = ServerUtility.getDefaultFile();
+		if(null == defaultFile) {
+			Scanner sc = new Scanner(System.in);
+			System.out.println("Make sure the file to be uploaded exits at location " + fileLoc);
+			System.out.println("Enter file name: ");
+			defaultFile = sc.hasNextLine() ? sc.nextLine() : "";
+			sc.close();
+		}
+		if(catalog.setDefault(defaultFile)) {
+			// start preparing the default file's chunks before the first client asks for it
+			catalog.open(null);
+		} else if(!defaultFile.isEmpty()) {
+			System.out.println("No file " + defaultFile + " to serve by default");
+		}
+		
+		// peers find each other through the tracker instead of peers.cfg
+		if(0 < ServerUtility.getTrackerPort()) {
+			new Tracker(ServerUtility.getTrackerPort(), ServerUtility.getPeerTimeout()).start();
+		}
+		
+		ServerEventLoop[] eventLoops = new ServerEventLoop[ServerUtility.getNumEventLoops()];
+		for(int i=0; i<eventLoops.length; i++) {
+			eventLoops[i] = new ServerEventLoop(i+1);
+			eventLoops[i].start();
+		}
+		
+		// all clients together get at most MAX_UPLOAD_RATE, each at most MAX_CONNECTION_RATE
+		long connectionRate = ServerUtility.getMaxConnectionRate();
+		RateLimiter uploadLimiter = null;
+		if(0 < ServerUtility.getMaxUploadRate()) {
+			uploadLimiter = new RateLimiter(ServerUtility.getMaxUploadRate(), null);
+		}
+		
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(sPort));
+		int connectionNum = 0;
+		try {
+			while (true) {
+				SocketChannel connection = listener.accept();
+				connection.configureBlocking(false);
+				connection.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				ServerHandler handler = new ServerHandler(connection, catalog);
+				if(null != uploadLimiter || 0 < connectionRate) {
+					handler.setRateLimiter(new RateLimiter(connectionRate, uploadLimiter));
+				}
+				eventLoops[connectionNum++ % eventLoops.length].register(handler);
+				Metrics.CONNECTIONS.increment();
+				// the handler names the client at INFO once it asks for a file
+				if(Log.isDebug()) {
+					System.out.println("Client connected to Server !!");
+				}
+			}
+		} finally {
+			listener.close();
+		}
+	}
+}
+
+/**
+ * An event loop thread. A small fixed number of event loops is started by the
+ * server and each one multiplexes many client connections over one selector.
+ */
+class ServerEventLoop extends Thread {
+	private Selector selector;
+	private Queue<ServerHandler> pendingHandlers = new ConcurrentLinkedQueue<ServerHandler>();
+	// work handed to this loop by other threads
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	// handlers waiting for the answer to HELLO, in order of their deadline
+	private Deque<ServerHandler> negotiatingHandlers = new ArrayDeque<ServerHandler>();
+	// handlers out of upload tokens, by the time they may write again
+	private PriorityQueue<Throttled> throttledHandlers = new PriorityQueue<Throttled>();
+
+	private static class Throttled implements Comparable<Throttled> {
+		private ServerHandler handler;
+		private long resumeAt;
+
+		public Throttled(ServerHandler handler, long resumeAt) {
+			this.handler = handler;
+			this.resumeAt = resumeAt;
+		}
+
+		public int compareTo(Throttled other) {
+			return Long.compare(resumeAt, other.resumeAt);
+		}
+	}
+
+	public ServerEventLoop(int loopId) throws IOException {
+		super("ServerEventLoop-" + loopId);
+		this.selector = Selector.open();
+	}
+
+	// hand over a connected client, called from the accepting thread
+	public void register(ServerHandler handler) {
+		handler.setEventLoop(this);
+		pendingHandlers.add(handler);
+		selector.wakeup();
+	}
+
+	// stops writing to handler for delay ms, called from this loop
+	public void throttle(ServerHandler handler, long delay) {
+		throttledHandlers.add(new Throttled(handler, System.currentTimeMillis() + delay));
+	}
+
+	// runs task on this event loop, called from other threads
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select(getSelectTimeout());
+				registerPendingHandlers();
+				Runnable task = null;
+				while(null != (task = tasks.poll())) {
+					task.run();
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handleKey(key);
+				}
+				
+				expireNegotiations();
+				resumeThrottled();
+			} catch (IOException ioException) {
+				ioException.printStackTrace();
+			}
+		}
+	}
+
+	private long getSelectTimeout() {
+		long deadline = Long.MAX_VALUE;
+		ServerHandler handler = negotiatingHandlers.peek();
+		if(null != handler) {
+			deadline = handler.getHelloDeadline();
+		}
+		Throttled throttled = throttledHandlers.peek();
+		if(null != throttled) {
+			deadline = Math.min(deadline, throttled.resumeAt);
+		}
+		if(Long.MAX_VALUE == deadline) {
+			return 0;
+		}
+		return Math.max(1, deadline - System.currentTimeMillis());
+	}
+
+	private void resumeThrottled() {
+		long now = System.currentTimeMillis();
+		while(!throttledHandlers.isEmpty() && throttledHandlers.peek().resumeAt <= now) {
+			ServerHandler handler = throttledHandlers.poll().handler;
+			if(handler.getConnection().isOpen()) {
+				handler.resume();
+			}
+		}
+	}
+
+	// clients that did not answer HELLO in time are old clients, talk version 1 to them
+	private void expireNegotiations() {
+		long now = System.currentTimeMillis();
+		while(!negotiatingHandlers.isEmpty() && negotiatingHandlers.peek().getHelloDeadline() <= now) {
+			ServerHandler handler = negotiatingHandlers.poll();
+			if(handler.isNegotiating() && handler.getConnection().isOpen()) {
+				handler.selectFile(1, null, 0);
+			}
+		}
+	}
+
+	private void registerPendingHandlers() {
+		ServerHandler handler = null;
+		while(null != (handler = pendingHandlers.poll())) {
+			try {
+				handler.start(handler.getConnection().register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, handler));
+				negotiatingHandlers.add(handler);
+			} catch (IOException ioException) {
+				handler.close();
+			}
+		}
+	}
+
+	private void handleKey(SelectionKey key) {
+		ServerHandler handler = (ServerHandler) key.attachment();
+		try {
+			if(key.isReadable() && !handler.handleRead()) {
+				System.out.println("Finished sending to Client " + handler.getClientId());
+				Metrics.CLIENTS_DONE.increment();
+				handler.close();
+				return;
+			}
+			if(key.isValid() && key.isWritable() && !handler.handleWrite()) {
+				System.out.println("Finished sending to Client " + handler.getClientId());
+				Metrics.CLIENTS_DONE.increment();
+				handler.close();
+			}
+		} catch (IOException ioException) {
+			System.out.println("Disconnect with Client " + handler.getClientId());
+			handler.close();
+		}
+	}
+}
+
+/**
+ * Per-connection state of a single client. Handlers are driven by a
+ * ServerEventLoop and only move data when the socket has room for it, so a
+ * slow client holds at most one control message and one chunk in flight.
+ */
+class ServerHandler {
+	// longest HELLO answer accepted, a UTF string is at most 65535 bytes
+	private static final int MAX_HELLO_SIZE = 65535 + 11;
+
+	private SocketChannel connection;
+	private SelectionKey key;
+	private ServerEventLoop eventLoop;
+	private FileCatalog catalog;
+	private ByteBuffer in = ByteBuffer.allocateDirect(Protocol.MAX_MESSAGE_SIZE);
+	private ByteBuffer out = ByteBuffer.allocateDirect(256);
+	private int version;
+	private long helloDeadline;
+	private int clientId;
+	// null until the requested file is open
+	private SharedFile file;
+	private ChunkSource chunkSource;
+	private SeedScheduler scheduler;
+	// chunks the client has from an earlier run, or was sent
+	private BitSet clientChunks = new BitSet();
+	// a version 2 client tells which chunks it has before chunks are sent
+	private boolean isAwaitingChunkList;
+	// the manifest is still to be sent, the file is being prepared
+	private boolean isManifestPending;
+	// the chunks left for the client are still being prepared
+	private boolean isAwaitingChunks;
+	// prepared() runs once more chunks are prepared
+	private boolean isAwaitingPrepared;
+	// chunks a version 2 client asked for again after DONE
+	private Queue<Integer> requestedChunks = new ArrayDeque<Integer>();
+	private int sendingChunkNum;
+	// whether the chunk being sent was handed out by the scheduler
+	private boolean isSendingScheduled;
+	// bytes of the chunk being sent on the wire, deflated or not
+	private int sendingChunkSize;
+	private long sendingPosition;
+	// the chunk being sent deflated, null if it goes raw
+	private ByteBuffer sendingDeflated;
+	// the chunk being sent is being deflated on the deflaters, its header is not out yet
+	private boolean isDeflating;
+	// when the chunk being sent was queued, in ns
+	private long sendingStart;
+	private Metrics.PeerStats peerStats;
+	private boolean done;
+	// limits the rate chunks are sent at, null for no limit
+	private RateLimiter limiter;
+	// out of tokens, the event loop resumes writing once there are some
+	private boolean isThrottled;
+
+	public ServerHandler(SocketChannel connection, FileCatalog catalog) {
+		this.connection = connection;
+		this.catalog = catalog;
+	}
+
+	public void setEventLoop(ServerEventLoop eventLoop) {
+		this.eventLoop = eventLoop;
+	}
+
+	public void setRateLimiter(RateLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public SocketChannel getConnection() {
+		return connection;
+	}
+
+	public int getClientId() {
+		return clientId;
+	}
+
+	public long getHelloDeadline() {
+		return helloDeadline;
+	}
+
+	public boolean isNegotiating() {
+		return 0 == version;
+	}
+
+	// nothing to send until the client's file is open, a version 2 client sent its chunk list and there are prepared chunks for it
+	private boolean isWaiting() {
+		return isNegotiating() || (null == file && !done) || isAwaitingChunkList || isAwaitingChunks;
+	}
+
+	public void start(SelectionKey key) {
+		this.key = key;
+		this.helloDeadline = System.currentTimeMillis() + Protocol.HELLO_TIMEOUT;
+		
+		Protocol.putStreamHeader(out);
+		Protocol.putUTF(out, Protocol.HELLO + ":" + Protocol.VERSION);
+	}
+
+	/**
+	 * Opens the file the client asked for once the protocol version is
+	 * known, null for the default file. Opening a file for the first time
+	 * goes to the disk, so that happens on the catalog's loader and the
+	 * handshake goes on on the event loop.
+	 */
+	public void selectFile(int peerVersion, final String request, int resumeClientId) {
+		version = Math.min(peerVersion, Protocol.VERSION);
+		clientId = resumeClientId;
+		updateInterestOps();
+		
+		SharedFile openFile = catalog.getOpen(request);
+		if(null != openFile) {
+			startTransfer(openFile);
+			return;
+		}
+		catalog.getLoader().execute(new Runnable() {
+			public void run() {
+				SharedFile openFile = null;
+				try {
+					openFile = catalog.open(request);
+				} catch(IOException ie) {
+					ie.printStackTrace();
+				}
+				final SharedFile openedFile = openFile;
+				eventLoop.execute(new Runnable() {
+					public void run() {
+						if(key.isValid()) {
+							startTransfer(openedFile);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	// starts the handshake, or tells a version 2 client the file does not exist
+	private void startTransfer(SharedFile openFile) {
+		if(null == openFile) {
+			refuse("No such file");
+			return;
+		}
+		if(openFile.isFailed()) {
+			refuse("File could not be read");
+			return;
+		}
+		
+		file = openFile;
+		chunkSource = file.getChunkSource();
+		scheduler = file.getScheduler();
+		boolean isResuming = 0 < clientId;
+		if(isResuming) {
+			System.out.println("Client " + clientId + " resumes " + file.getName());
+		} else {
+			clientId = file.nextClientId();
+			System.out.println("Client " + clientId + " gets " + file.getName());
+		}
+		// client ids count per file
+		peerStats = Metrics.peer("Client " + clientId + " of " + file.getName());
+		
+		sendMessage(Protocol.CLIENT_ID, clientId);
+		ensureCapacity(Protocol.MAX_MESSAGE_SIZE + Protocol.getUTFSize(file.getName()));
+		Protocol.putMessage(out, version, Protocol.FILE_NAME, file.getName());
+		ensureCapacity(Protocol.MAX_MESSAGE_SIZE);
+		Protocol.putMessage(out, version, Protocol.FILE_SIZE, file.getSize());
+		sendMessage(Protocol.NUM_CHUNKS, chunkSource.getNumChunks());
+		if(2 < version) {
+			// lets the client ask neighbors for blocks of a chunk
+			sendMessage(Protocol.CHUNK_SIZE, file.getChunkSize());
+		}
+		if(1 < version) {
+			// version 3 clients get chunks before the manifest, unless they resume and have chunks already
+			isAwaitingChunkList = 2 == version || isResuming;
+			isManifestPending = true;
+			sendManifest();
+		}
+		updateInterestOps();
+	}
+
+	// tells a version 2 client why it gets no (more) chunks, a version 1 client is just closed
+	private void refuse(String reason) {
+		System.out.println(reason + " for Client " + clientId);
+		if(1 < version) {
+			ensureCapacity(Protocol.MAX_MESSAGE_SIZE + Protocol.getUTFSize(reason));
+			Protocol.putMessage(out, version, Protocol.ERROR, reason);
+			done = true;
+			updateInterestOps();
+		} else {
+			close();
+		}
+	}
+
+	// sends the manifest if the file is prepared, or once it is
+	private void sendManifest() {
+		// counted first, the manifest is set before the last chunk counts
+		int numPrepared = file.getNumPrepared();
+		Manifest manifest = file.getManifest();
+		if(null == manifest) {
+			awaitPrepared(numPrepared);
+			return;
+		}
+		byte[] bytes = manifest.toBytes();
+		ensureCapacity(Protocol.MAX_MESSAGE_SIZE + bytes.length);
+		Protocol.putFrameHeader(out, Protocol.MANIFEST, bytes.length);
+		out.put(bytes);
+		isManifestPending = false;
+	}
+
+	// has prepared() run on the event loop once more than numPrepared chunks are prepared
+	private void awaitPrepared(int numPrepared) {
+		if(isAwaitingPrepared) {
+			return;
+		}
+		isAwaitingPrepared = true;
+		file.awaitPrepared(numPrepared, new Runnable() {
+			public void run() {
+				eventLoop.execute(new Runnable() {
+					public void run() {
+						isAwaitingPrepared = false;
+						if(key.isValid()) {
+							prepared();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	// more chunks, and maybe the manifest, are prepared
+	private void prepared() {
+		if(file.isFailed()) {
+			// a chunk being sent goes out first, the next one finds the file failed again
+			if(0 == sendingChunkNum && !done) {
+				refuse("File could not be read");
+			}
+			return;
+		}
+		isAwaitingChunks = false;
+		// not in the middle of a chunk's bytes, queueNextChunk sends it after that chunk
+		if(isManifestPending && 0 == sendingChunkNum) {
+			sendManifest();
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * Reads whatever the client sent.
+	 * Returns false once a version 2 client closed the connection after DONE.
+	 */
+	public boolean handleRead() throws IOException {
+		if(-1 == connection.read(in)) {
+			if(done && 1 < version) {
+				return false;
+			}
+			throw new IOException("Connection closed by client");
+		}
+		
+		if(isNegotiating()) {
+			in.flip();
+			String hello = Protocol.getHello(in);
+			in.compact();
+			if(null != hello) {
+				selectFile(Protocol.getHelloVersion(hello), Protocol.getHelloFile(hello), Protocol.getHelloClientId(hello));
+			} else if(!in.hasRemaining()) {
+				// a long file name
+				if(in.capacity() >= MAX_HELLO_SIZE) {
+					throw new IOException("HELLO too large from Client");
+				}
+				ByteBuffer bigger = ByteBuffer.allocateDirect(Math.min(2 * in.capacity(), MAX_HELLO_SIZE));
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+		} else if(1 == version) {
+			in.clear();
+		} else if(null != file) {
+			readRequests();
+		}
+		return true;
+	}
+
+	// reads the client's chunk list and queues chunks requested again, ignores other frames
+	private void readRequests() throws IOException {
+		in.flip();
+		while(in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+			int length = in.getInt();
+			int frameEnd = in.position() + length;
+			byte opcode = in.get();
+			if(Protocol.BITFIELD == opcode) {
+				byte[] bytes = new byte[frameEnd - in.position()];
+				in.get(bytes);
+				clientChunks.or(BitSet.valueOf(bytes));
+				// a version 3 client sends its list after the manifest too, holding the chunks sent already
+				if(isAwaitingChunkList && !clientChunks.isEmpty()) {
+					System.out.println("Client " + clientId + " already has " + clientChunks.cardinality() + " chunks");
+				}
+				isAwaitingChunkList = false;
+			} else if(Protocol.REQ_FOR_CHUNK == opcode) {
+				int chunkNum = in.getInt();
+				if(0 < chunkNum && chunkNum <= chunkSource.getNumChunks()) {
+					requestedChunks.add(chunkNum);
+					Metrics.REQUESTS_QUEUED.increment();
+				}
+			}
+			in.position(frameEnd);
+		}
+		if(in.remaining() >= 4) {
+			// room for a chunk list of all chunks
+			int frameSize = 4 + in.getInt(in.position());
+			if(frameSize > Protocol.MAX_MESSAGE_SIZE + chunkSource.getNumChunks() / 8) {
+				throw new IOException("Frame too large from Client " + clientId);
+			}
+			if(frameSize > in.capacity()) {
+				ByteBuffer bigger = ByteBuffer.allocateDirect(frameSize);
+				bigger.put(in);
+				in = bigger;
+				updateInterestOps();
+				return;
+			}
+		}
+		in.compact();
+		updateInterestOps();
+	}
+
+	/**
+	 * Writes as much as the socket accepts right now.
+	 * Returns false once everything, including DONE, has been written.
+	 */
+	public boolean handleWrite() throws IOException {
+		while (true) {
+			if(0 < out.position()) {
+				out.flip();
+				connection.write(out);
+				out.compact();
+				if(0 < out.position()) {
+					return true;
+				}
+			}
+			
+			if(isDeflating) {
+				updateInterestOps();
+				return true;
+			}
+			if(0 != sendingChunkNum) {
+				long count = sendingChunkSize - sendingPosition;
+				if(null != limiter) {
+					count = limiter.tryAcquire((int) count);
+					if(0 == count) {
+						isThrottled = true;
+						eventLoop.throttle(this, limiter.getDelay(RateLimiter.QUANTUM));
+						updateInterestOps();
+						return true;
+					}
+				}
+				long sent;
+				if(null != sendingDeflated) {
+					sendingDeflated.limit((int) (sendingPosition + count));
+					sent = connection.write(sendingDeflated);
+				} else {
+					sent = chunkSource.transferChunk(sendingChunkNum, sendingPosition, count, connection);
+				}
+				if(null != limiter) {
+					limiter.refund((int) (count - sent));
+				}
+				sendingPosition += sent;
+				peerStats.sent(sent);
+				// with a limit, other connections get their turn after every grant
+				if(sendingPosition < sendingChunkSize) {
+					return true;
+				}
+				sendingChunkNum = 0;
+				peerStats.chunkSent();
+				Metrics.UPLOAD_TIME.record(System.nanoTime() - sendingStart);
+				// a client that reads as fast as we send does not keep the other connections of this loop waiting
+				return true;
+			}
+			
+			if(isWaiting()) {
+				updateInterestOps();
+				return true;
+			}
+			if(!requestedChunks.isEmpty()) {
+				int chunkNum = requestedChunks.poll();
+				Metrics.REQUESTS_QUEUED.decrement();
+				Metrics.RETRIES.increment();
+				if(Log.isDebug()) {
+					System.out.println("Client " + clientId + " asked for chunk " + chunkNum + " again");
+				}
+				queueChunk(chunkNum, false);
+				continue;
+			}
+			if(done) {
+				if(1 == version) {
+					return false;
+				}
+				// version 2 clients may still ask for chunks that failed verification
+				updateInterestOps();
+				return true;
+			}
+			queueNextChunk();
+		}
+	}
+
+	private void queueNextChunk() throws IOException {
+		int numPrepared = file.getNumPrepared();
+		int chunkNum = scheduler.next(clientId, clientChunks);
+		if(SeedScheduler.WAIT == chunkNum) {
+			isAwaitingChunks = true;
+			awaitPrepared(numPrepared);
+		}
+		// the manifest is set before the last chunk is prepared, so it goes before DONE
+		if(isManifestPending) {
+			sendManifest();
+		}
+		if(SeedScheduler.WAIT == chunkNum) {
+			return;
+		}
+		if(0 == chunkNum) {
+			sendMessage(Protocol.DONE);
+			done = true;
+			return;
+		}
+		
+		clientChunks.set(chunkNum-1);
+		queueChunk(chunkNum, true);
+	}
+
+	private void queueChunk(final int chunkNum, boolean isScheduled) {
+		isSendingScheduled = isScheduled;
+		sendingChunkNum = chunkNum;
+		sendingPosition = 0;
+		sendingStart = System.nanoTime();
+		sendingDeflated = null;
+		final ChunkCompressor compressor = file.getCompressor();
+		if(null == compressor || version < 4) {
+			queueChunkHeader(chunkNum, null);
+			return;
+		}
+		byte[] deflated = compressor.getCached(chunkNum);
+		if(null != deflated) {
+			queueChunkHeader(chunkNum, ChunkCompressor.RAW == deflated ? null : deflated);
+			return;
+		}
+		// reading and deflating the chunk would hold up every connection of the loop
+		isDeflating = true;
+		file.getDeflaters().execute(new Runnable() {
+			public void run() {
+				byte[] deflated = null;
+				try {
+					deflated = compressor.getDeflated(chunkNum);
+				} catch(IOException ie) {
+					// goes raw, sending it reports the error if there is one
+					ie.printStackTrace();
+				}
+				final byte[] result = deflated;
+				eventLoop.execute(new Runnable() {
+					public void run() {
+						isDeflating = false;
+						if(key.isValid()) {
+							queueChunkHeader(chunkNum, result);
+							updateInterestOps();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	// deflated is null if the chunk goes raw
+	private void queueChunkHeader(int chunkNum, byte[] deflated) {
+		sendingChunkSize = chunkSource.getChunkSize(chunkNum);
+		ensureCapacity(Protocol.MAX_MESSAGE_SIZE);
+		if(null != deflated) {
+			Protocol.putDeflatedChunkHeader(out, chunkNum, sendingChunkSize, deflated.length);
+			Metrics.COMPRESSION_SAVED.add(sendingChunkSize - deflated.length);
+			sendingDeflated = ByteBuffer.wrap(deflated);
+			sendingChunkSize = deflated.length;
+		} else {
+			Protocol.putChunkHeader(out, version, chunkNum, sendingChunkSize);
+		}
+		if(Log.isDebug()) {
+			System.out.println("Sending chunk " + chunkNum + " of size " + chunkSource.getChunkSize(chunkNum) + " bytes to Client " + clientId + (null != deflated ? ", deflated to " + deflated.length : ""));
+		}
+	}
+
+	private void sendMessage(byte opcode) {
+		ensureCapacity(Protocol.MAX_MESSAGE_SIZE);
+		Protocol.putMessage(out, version, opcode);
+	}
+
+	private void sendMessage(byte opcode, int value) {
+		ensureCapacity(Protocol.MAX_MESSAGE_SIZE);
+		Protocol.putMessage(out, version, opcode, value);
+	}
+
+	private void ensureCapacity(int n) {
+		if(out.remaining() < n) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(out.position() + n);
+			out.flip();
+			bigger.put(out);
+			out = bigger;
+		}
+	}
+
+	// only ask for OP_WRITE while there is something to send
+	private void updateInterestOps() {
+		if(key.isValid()) {
+			boolean idle = (isWaiting() || done) && 0 == sendingChunkNum && requestedChunks.isEmpty();
+			// a chunk being deflated is queued once it is back
+			idle = (idle || isDeflating) && 0 == out.position();
+			key.interestOps(SelectionKey.OP_READ | (idle || isThrottled ? 0 : SelectionKey.OP_WRITE));
+		}
+	}
+
+	// called by the event loop once the rate limiter has tokens again
+	public void resume() {
+		isThrottled = false;
+		updateInterestOps();
+	}
+
+	public void close() {
+		// a chunk cut off halfway did not reach the client
+		if(0 != sendingChunkNum && isSendingScheduled) {
+			scheduler.release(clientId, sendingChunkNum);
+			sendingChunkNum = 0;
+		}
+		if(!done && null != scheduler) {
+			scheduler.disconnect(clientId);
+		}
+		Metrics.REQUESTS_QUEUED.add(-requestedChunks.size());
+		requestedChunks.clear();
+		if(connection.isOpen()) {
+			Metrics.CONNECTIONS.decrement();
+		}
+		try {
+			if(null != key) {
+				key.cancel();
+			}
+			connection.close();
+		} catch (IOException ioException) {
+			System.out.println("Disconnect with Client " + clientId);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+class ServerUtility {
+	private static final String CONFIG_FILE = "server.cfg";
+	public static Properties prop;
+	
+	public static void loadProperties() {
+		prop = new Properties();
+		try {
+			prop.load(new FileInputStream(CONFIG_FILE));
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		Log.setLevel(prop.getProperty("LOG_LEVEL"));
+	}
+	
+	public static int getPort() {
+		return Integer.parseInt(prop.getProperty("PORT"));
+	}
+	
+	public static int getNumClients() {
+		return Integer.parseInt(prop.getProperty("NUM_CLIENTS"));
+	}
+	
+	// CHUNK_SIZE=AUTO picks a chunk size per file, any other value is the chunk size of every file
+	public static ChunkSizePolicy getChunkSizePolicy() {
+		String chunkSize = prop.getProperty("CHUNK_SIZE");
+		if("AUTO".equals(chunkSize)) {
+			return new AutoChunkSize(Integer.parseInt(prop.getProperty("MIN_CHUNK_SIZE", "16384")),
+					Integer.parseInt(prop.getProperty("MAX_CHUNK_SIZE", "4194304")),
+					Integer.parseInt(prop.getProperty("TARGET_NUM_CHUNKS", "1024")),
+					Integer.parseInt(prop.getProperty("MIN_CHUNKS_PER_CLIENT", "16")));
+		}
+		return new FixedChunkSize(Integer.parseInt(chunkSize));
+	}
+	
+	public static String getFileLoc() {
+		return prop.getProperty("FILE_LOC");
+	}
+	
+	// file listing the files to serve, null to serve every file in FILE_LOC
+	public static File getCatalogFile() {
+		String catalog = prop.getProperty("CATALOG");
+		return null == catalog ? null : new File(catalog);
+	}
+	
+	// file served to clients that do not ask for one, null to ask on the console
+	public static String getDefaultFile() {
+		return prop.getProperty("DEFAULT_FILE");
+	}
+	
+	// bytes per second sent to all clients together, 0 for no limit
+	public static long getMaxUploadRate() {
+		return Long.parseLong(prop.getProperty("MAX_UPLOAD_RATE", "0"));
+	}
+	
+	// bytes per second sent to each client, 0 for no limit
+	public static long getMaxConnectionRate() {
+		return Long.parseLong(prop.getProperty("MAX_CONNECTION_RATE", "0"));
+	}
+	
+	// port of the built-in tracker, 0 for none
+	public static int getTrackerPort() {
+		return Integer.parseInt(prop.getProperty("TRACKER_PORT", "0"));
+	}
+	
+	// ms after which the tracker drops a peer that stopped announcing
+	public static long getPeerTimeout() {
+		return Long.parseLong(prop.getProperty("PEER_TIMEOUT", "10000"));
+	}
+	
+	// port of the metrics HTTP endpoint, 0 for none
+	public static int getMetricsPort() {
+		return Integer.parseInt(prop.getProperty("METRICS_PORT", "0"));
+	}
+	
+	// ms between metrics summary lines, 0 for none
+	public static long getMetricsInterval() {
+		return Long.parseLong(prop.getProperty("METRICS_INTERVAL", "5000"));
+	}
+	
+	public static int getNumEventLoops() {
+		return Integer.parseInt(prop.getProperty("EVENT_LOOPS", "" + Runtime.getRuntime().availableProcessors()));
+	}
+	
+	public static ChunkSelector getChunkSelector() {
+		if("SEQUENTIAL".equals(prop.getProperty("CHUNK_SELECTION"))) {
+			return new SequentialSelector();
+		}
+		return new RarestFirstSelector(0);
+	}
+	
+	// DIRECT (default) serves ranges of the original file, SPLIT pre-splits it into part files
+	public static String getServingMode() {
+		return prop.getProperty("SERVING_MODE", "DIRECT");
+	}
+	
+	// DEFLATE to send chunks that shrink deflated to version 4 clients
+	public static boolean isCompressionEnabled() {
+		return "DEFLATE".equals(prop.getProperty("COMPRESSION"));
+	}
+	
+	public static long getCompressionCacheSize() {
+		return Long.parseLong(prop.getProperty("COMPRESSION_CACHE_SIZE", "67108864"));
+	}
+	
+	// bytes of popular chunks kept in memory for all files, 0 (default) for none
+	public static long getChunkCacheSize() {
+		return Long.parseLong(prop.getProperty("CHUNK_CACHE_SIZE", "0"));
+	}
+	
+	/**
+	 * Splits a file into part files of chunkSize bytes, name.001, name.002
+	 * and so on next to it, copying the chunks in parallel.
+	 * @param file: file name & location
+	 * @param chunkSize: chunk size in bytes
+	 */
+	public static List<File> splitFileIntoChunks(File file, int chunkSize) {
+		List<File> partFiles = new ArrayList<File>();
+		ExecutorService splitters = ChunkVerifier.newThreadPool(Runtime.getRuntime().availableProcessors(), "Splitter");
+		FileRangeChunkSource chunks = null;
+		try {
+			chunks = new FileRangeChunkSource(file, chunkSize);
+			partFiles = getPartFiles(file, chunks.getNumChunks());
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for(int i=1; i<=partFiles.size(); i++) {
+				final FileRangeChunkSource source = chunks;
+				final int chunkNum = i;
+				final File partFile = partFiles.get(i-1);
+				results.add(splitters.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						splitChunk(source, chunkNum, partFile);
+						return null;
+					}
+				}));
+			}
+			for(Future<?> result: results) {
+				result.get();
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+		} finally {
+			splitters.shutdown();
+			try {
+				if(null != chunks) {
+					chunks.close();
+				}
+			} catch(IOException ie) {
+				ie.printStackTrace();
+			}
+		}
+		
+		return partFiles;
+	}
+	
+	// part files name.001, name.002, ... of the chunks of file
+	public static List<File> getPartFiles(File file, int numChunks) {
+		List<File> partFiles = new ArrayList<File>();
+		for(int i=1; i<=numChunks; i++) {
+			partFiles.add(new File(file.getParent(), file.getName() + "." + String.format("%03d", i)));
+		}
+		return partFiles;
+	}
+	
+	// copies a chunk of the original file to its part file, safe to call for several chunks at once
+	public static void splitChunk(FileRangeChunkSource chunks, int chunkNum, File partFile) throws IOException {
+		FileOutputStream out = new FileOutputStream(partFile);
+		try {
+			FileChannel channel = out.getChannel();
+			int chunkSize = chunks.getChunkSize(chunkNum);
+			long position = 0;
+			while(position < chunkSize) {
+				position += chunks.transferChunk(chunkNum, position, chunkSize - position, channel);
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	public static void removeSplitFiles(File file, int numChunks) {
+		for(File partFile: getPartFiles(file, numChunks)) {
+			partFile.delete();
+		}
+	}
+}
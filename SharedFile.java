@@ -0,0 +1,214 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A file being served: its chunks, manifest and the scheduler handing its
+ * chunks out to its clients. Client ids count per file, every file has its
+ * own swarm of NUM_CLIENTS clients.
+ *
+ * Chunks are prepared after the file is opened, one task per chunk on the
+ * hashers: copied to their part file with SERVING_MODE=SPLIT, then hashed.
+ * The scheduler hands out every chunk as soon as it is prepared, so clients
+ * get chunks while the rest of the file is still being prepared. The
+ * manifest is there once the last chunk is hashed. If a chunk cannot be
+ * prepared the manifest never will be, the file is failed and its clients
+ * are turned away; FileCatalog opens it afresh for the next client.
+ */
+class SharedFile {
+	private int id;
+	private String name;
+	private long size;
+	private int chunkSize;
+	private ChunkSource chunkSource;
+	// the original file, the same as chunkSource unless SERVING_MODE=SPLIT
+	private FileRangeChunkSource fileChunks;
+	// chunkSource as served to clients, through the chunk cache if there is one
+	private ChunkSource servedSource;
+	// deflates chunks for clients on the deflaters, null without COMPRESSION
+	private ChunkCompressor compressor;
+	private ExecutorService deflaters;
+	// null until every chunk is prepared
+	private volatile Manifest manifest;
+	private SeedScheduler scheduler;
+	private int nextClientId = 1;
+	// hashes of the chunks prepared so far
+	private byte[][] hashes;
+	private int numPrepared;
+	// run once more chunks are prepared
+	private List<Runnable> preparedListeners = new ArrayList<Runnable>();
+	private long prepareStart;
+	// a chunk could not be prepared
+	private boolean isFailed;
+
+	public SharedFile(int id, File file, int chunkSize, int numClients, ExecutorService hashers, ExecutorService deflaters, ChunkCache chunkCache) throws IOException {
+		this.id = id;
+		this.name = file.getName();
+		this.size = file.length();
+		this.chunkSize = chunkSize;
+		final FileRangeChunkSource fileChunks = new FileRangeChunkSource(file, chunkSize);
+		this.fileChunks = fileChunks;
+		final List<File> partFiles;
+		if("SPLIT".equals(ServerUtility.getServingMode())) {
+			partFiles = ServerUtility.getPartFiles(file, fileChunks.getNumChunks());
+			this.chunkSource = new PartFileChunkSource(partFiles);
+		} else {
+			partFiles = null;
+			this.chunkSource = fileChunks;
+		}
+		this.servedSource = null == chunkCache ? chunkSource : chunkCache.wrap(chunkSource, id);
+		this.hashes = new byte[chunkSource.getNumChunks()][];
+		if(ServerUtility.isCompressionEnabled()) {
+			this.compressor = new ChunkCompressor(chunkSource, ServerUtility.getCompressionCacheSize());
+			this.deflaters = deflaters;
+		}
+		this.scheduler = new SeedScheduler(chunkSource.getNumChunks(), numClients, ServerUtility.getChunkSelector());
+
+		System.out.println("File name: " + name);
+		System.out.println("File size: " + size);
+		System.out.println("Chunk size: " + chunkSize);
+		System.out.println("Number of chunks: " + chunkSource.getNumChunks());
+
+		prepareStart = System.nanoTime();
+		if(0 == hashes.length) {
+			setManifest();
+		}
+		for(int i=1; i<=hashes.length; i++) {
+			final int chunkNum = i;
+			hashers.execute(new Runnable() {
+				public void run() {
+					try {
+						if(null != partFiles) {
+							ServerUtility.splitChunk(fileChunks, chunkNum, partFiles.get(chunkNum-1));
+						}
+						if(chunkPrepared(chunkNum, Manifest.hash(chunkSource, chunkNum)) && null != partFiles) {
+							fileChunks.close();
+						}
+					} catch(IOException ie) {
+						prepareFailed(chunkNum, ie);
+					}
+				}
+			});
+		}
+	}
+
+	// wakes up the clients waiting for chunks, they find the file failed
+	private void prepareFailed(int chunkNum, IOException ie) {
+		System.out.println("Could not prepare chunk " + chunkNum + " of " + name);
+		ie.printStackTrace();
+		List<Runnable> listeners;
+		synchronized(this) {
+			if(isFailed) {
+				return;
+			}
+			isFailed = true;
+			listeners = preparedListeners;
+			preparedListeners = new ArrayList<Runnable>();
+		}
+		for(Runnable listener: listeners) {
+			listener.run();
+		}
+	}
+
+	// returns true if this was the last chunk
+	private boolean chunkPrepared(int chunkNum, byte[] hash) {
+		List<Runnable> listeners;
+		boolean isLast;
+		synchronized(this) {
+			hashes[chunkNum-1] = hash;
+			isLast = hashes.length == numPrepared + 1;
+			// the manifest is there before the last chunk can be handed out
+			if(isLast) {
+				setManifest();
+			}
+			scheduler.prepared(chunkNum);
+			numPrepared++;
+			listeners = preparedListeners;
+			preparedListeners = new ArrayList<Runnable>();
+		}
+		for(Runnable listener: listeners) {
+			listener.run();
+		}
+		return isLast;
+	}
+
+	private void setManifest() {
+		manifest = new Manifest(hashes);
+		System.out.println("Prepared " + hashes.length + " chunks of " + name + " in " + (System.nanoTime() - prepareStart) / 1000000 + " ms");
+		System.out.println("Manifest root: " + manifest.getRoot());
+	}
+
+	public synchronized int getNumPrepared() {
+		return numPrepared;
+	}
+
+	/**
+	 * Runs listener once more than numPrepared chunks are prepared or the
+	 * file failed, right away if that is so already. It runs on a hasher
+	 * thread, or the caller's.
+	 */
+	public void awaitPrepared(int numPrepared, Runnable listener) {
+		synchronized(this) {
+			if(this.numPrepared <= numPrepared && !isFailed) {
+				preparedListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	// all chunks but the last have this size
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public ChunkSource getChunkSource() {
+		return servedSource;
+	}
+
+	// null if chunks are sent raw
+	public ChunkCompressor getCompressor() {
+		return compressor;
+	}
+
+	// runs chunks the compressor has not cached through it, off the event loops
+	public ExecutorService getDeflaters() {
+		return deflaters;
+	}
+
+	// null while chunks are still being prepared
+	public Manifest getManifest() {
+		return manifest;
+	}
+
+	public SeedScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public synchronized int nextClientId() {
+		return nextClientId++;
+	}
+
+	public synchronized boolean isFailed() {
+		return isFailed;
+	}
+
+	public void close() throws IOException {
+		chunkSource.close();
+		fileChunks.close();
+	}
+}
@@ -0,0 +1,216 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Keeps track of the peers downloading or seeding each file, so peers find
+ * each other without peers.cfg. Runs inside the server when TRACKER_PORT
+ * is set in server.cfg, or on its own with "java Tracker".
+ *
+ * Every request is a connection of its own:
+ *
+ *   request:  UTF file | int event | int peerId | int port | int load | int numChunks | int want
+ *   response: int count | count * (int peerId | UTF host | int port)
+ *
+ * A peer announces JOIN once it has its client id and listening port, then
+ * UPDATE every few seconds and LEAVE when it quits. load is the number of
+ * peers it uploads to, numChunks the number of chunks it has. The response
+ * holds up to want other peers, least loaded first and those with more
+ * chunks first among equally loaded ones. Peers that stop announcing are
+ * dropped after PEER_TIMEOUT ms. The host of a peer is the address its
+ * announce came from.
+ *
+ * Announces are handled on HANDLER_THREADS threads, each connection with a
+ * read timeout, so a slow or broken peer does not hold up the others.
+ */
+class Tracker extends Thread {
+	public static final int JOIN = 1;
+	public static final int UPDATE = 2;
+	public static final int LEAVE = 3;
+	private static final int SOCKET_TIMEOUT = 1000;
+	private static final int HANDLER_THREADS = 4;
+
+	private int port;
+	private long peerTimeout;
+	// peers of each file by peer id
+	private Map<String, Map<Integer, Peer>> swarms = new HashMap<String, Map<Integer, Peer>>();
+
+	static class Peer {
+		int peerId;
+		String host;
+		int port;
+		int load;
+		int numChunks;
+		long lastSeen;
+	}
+
+	public Tracker(int port, long peerTimeout) {
+		super("Tracker");
+		this.port = port;
+		this.peerTimeout = peerTimeout;
+	}
+
+	// runs the tracker without a server, on TRACKER_PORT of server.cfg
+	public static void main(String[] args) {
+		ServerUtility.loadProperties();
+		new Tracker(ServerUtility.getTrackerPort(), ServerUtility.getPeerTimeout()).start();
+	}
+
+	public void run() {
+		ServerSocket listener = null;
+		ExecutorService handlers = ChunkVerifier.newThreadPool(HANDLER_THREADS, "TrackerHandler");
+		try {
+			listener = new ServerSocket(port);
+			System.out.println("Tracker listening on port " + port);
+			while(true) {
+				final Socket connection = listener.accept();
+				handlers.execute(new Runnable() {
+					public void run() {
+						handle(connection);
+					}
+				});
+			}
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		} finally {
+			handlers.shutdown();
+			try {
+				if(null != listener) {
+					listener.close();
+				}
+			} catch(IOException ie) {
+				ie.printStackTrace();
+			}
+		}
+	}
+
+	// answers one announce, a malformed one is dropped without an answer
+	private void handle(Socket connection) {
+		try {
+			connection.setSoTimeout(SOCKET_TIMEOUT);
+			handleAnnounce(connection);
+		} catch(IOException | RuntimeException e) {
+			System.out.println("Tracker: bad announce from " + connection.getInetAddress().getHostAddress() + ": " + e);
+		} finally {
+			try {
+				connection.close();
+			} catch(IOException ie) {
+				ie.printStackTrace();
+			}
+		}
+	}
+
+	private void handleAnnounce(Socket connection) throws IOException {
+		DataInputStream in = new DataInputStream(connection.getInputStream());
+		String file = in.readUTF();
+		int event = in.readInt();
+		Peer peer = new Peer();
+		peer.peerId = in.readInt();
+		peer.host = connection.getInetAddress().getHostAddress();
+		peer.port = in.readInt();
+		peer.load = in.readInt();
+		peer.numChunks = in.readInt();
+		peer.lastSeen = System.currentTimeMillis();
+		int want = in.readInt();
+		if(event < JOIN || event > LEAVE || want < 0) {
+			throw new IOException("Invalid announce, event " + event + ", want " + want);
+		}
+
+		List<Peer> sample = announce(file, event, peer, want);
+
+		DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+		out.writeInt(sample.size());
+		for(Peer other: sample) {
+			out.writeInt(other.peerId);
+			out.writeUTF(other.host);
+			out.writeInt(other.port);
+		}
+		out.flush();
+	}
+
+	// records the announce and returns up to want other peers of the file
+	private synchronized List<Peer> announce(String file, int event, Peer peer, int want) {
+		Map<Integer, Peer> swarm = swarms.get(file);
+		if(null == swarm) {
+			swarm = new HashMap<Integer, Peer>();
+			swarms.put(file, swarm);
+		}
+
+		for(Iterator<Peer> it = swarm.values().iterator(); it.hasNext(); ) {
+			Peer other = it.next();
+			if(peer.lastSeen - other.lastSeen > peerTimeout) {
+				System.out.println("Tracker: peer " + other.peerId + " of " + file + " timed out");
+				it.remove();
+			}
+		}
+		if(LEAVE == event) {
+			swarm.remove(peer.peerId);
+			System.out.println("Tracker: peer " + peer.peerId + " left " + file);
+			return new ArrayList<Peer>();
+		}
+		if(JOIN == event || !swarm.containsKey(peer.peerId)) {
+			System.out.println("Tracker: peer " + peer.peerId + " joined " + file + " at " + peer.host + ":" + peer.port);
+		}
+		swarm.put(peer.peerId, peer);
+
+		List<Peer> others = new ArrayList<Peer>(swarm.values());
+		others.remove(peer);
+		// random order among equals, so not every peer picks the same neighbors
+		Collections.shuffle(others);
+		Collections.sort(others, new Comparator<Peer>() {
+			public int compare(Peer a, Peer b) {
+				if(a.load != b.load) {
+					return a.load - b.load;
+				}
+				return b.numChunks - a.numChunks;
+			}
+		});
+		return new ArrayList<Peer>(others.subList(0, Math.min(want, others.size())));
+	}
+
+	/**
+	 * Announces a peer to the tracker at address and returns the peers the
+	 * tracker suggests, with their peerId, host and port set.
+	 */
+	public static List<Peer> announce(InetSocketAddress address, String file, int event, int peerId, int port, int load, int numChunks, int want) throws IOException {
+		Socket connection = new Socket();
+		try {
+			connection.connect(address, SOCKET_TIMEOUT);
+			connection.setSoTimeout(SOCKET_TIMEOUT);
+			DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+			out.writeUTF(file);
+			out.writeInt(event);
+			out.writeInt(peerId);
+			out.writeInt(port);
+			out.writeInt(load);
+			out.writeInt(numChunks);
+			out.writeInt(want);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(connection.getInputStream());
+			int count = in.readInt();
+			List<Peer> peers = new ArrayList<Peer>();
+			for(int i=0; i<count; i++) {
+				Peer peer = new Peer();
+				peer.peerId = in.readInt();
+				peer.host = in.readUTF();
+				peer.port = in.readInt();
+				peers.add(peer);
+			}
+			return peers;
+		} finally {
+			connection.close();
+		}
+	}
+}
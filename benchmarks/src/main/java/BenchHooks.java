@@ -0,0 +1,130 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.List;
+
+import bench.Hooks;
+import bench.Link;
+
+/**
+ * Hands the default package classes to the benchmarks, see bench.Hooks.
+ */
+public class BenchHooks implements Hooks {
+	public List<File> splitFileIntoChunks(File file, int chunkSize) {
+		return ServerUtility.splitFileIntoChunks(file, chunkSize);
+	}
+
+	public void removeSplitFiles(File file, int numChunks) {
+		ServerUtility.removeSplitFiles(file, numChunks);
+	}
+
+	public File mergeFiles(List<File> files) {
+		return ClientUtility.mergeFiles(files);
+	}
+
+	public Link openLink(File file, int chunkSize, File received) throws IOException {
+		return new LoopbackLink(file, chunkSize, received);
+	}
+}
+
+/**
+ * An upload thread serving chunks the way a client's upload handler does,
+ * and a download side storing them the way a DIRECT client does. The
+ * benchmark thread is the download side.
+ */
+class LoopbackLink implements Link {
+	private ChunkSource chunks;
+	private ChunkStore store;
+	private MessageChannel uploader;
+	private MessageChannel downloader;
+	private Thread uploadThread;
+	private BitSet peerChunks = new BitSet();
+
+	public LoopbackLink(File file, int chunkSize, File received) throws IOException {
+		chunks = new FileRangeChunkSource(file, chunkSize);
+		store = new PreallocatedChunkStore(received, file.length(), chunks.getNumChunks());
+
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		try {
+			listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			downloader = new MessageChannel(SocketChannel.open(listener.getLocalAddress()));
+			uploader = new MessageChannel(listener.accept());
+		} finally {
+			listener.close();
+		}
+
+		uploadThread = new Thread("Uploader") {
+			public void run() {
+				serve();
+			}
+		};
+		uploadThread.start();
+		// negotiates version 2 and gets the uploader's chunks like a neighbor download handler
+		downloader.sendHello(Protocol.REQ_FOR_CHUNK_LIST);
+		downloader.readChunkAvailability(peerChunks);
+	}
+
+	private void serve() {
+		try {
+			uploader.answerHello(true);
+			while(true) {
+				byte opcode = uploader.readMessage();
+				if(Protocol.REQ_FOR_CHUNK_LIST == opcode) {
+					BitSet all = new BitSet();
+					all.set(0, chunks.getNumChunks());
+					uploader.writeChunkList(all);
+				} else if(Protocol.REQ_FOR_CHUNK == opcode) {
+					int chunkNum = uploader.getInt();
+					uploader.writeChunkReply(chunkNum, chunks, chunks.getChunkSize(chunkNum));
+				}
+			}
+		} catch(EOFException | ClosedChannelException e) {
+			// the download side closed the link
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		}
+	}
+
+	public int getNumChunks() {
+		return chunks.getNumChunks();
+	}
+
+	public int transferChunk(int chunkNum) throws IOException {
+		downloader.writeMessage(Protocol.REQ_FOR_CHUNK, chunkNum);
+		int chunkSize = downloader.readChunkReply(chunkNum, peerChunks);
+		store.storeChunk(downloader.getChunkNum(), chunkSize, downloader);
+		return chunkSize;
+	}
+
+	// the lists are small enough for the socket buffer, so they are written from this thread
+	public int transferChunkList(BitSet chunkList) throws IOException {
+		uploader.writeChunkList(chunkList);
+		downloader.readChunkAvailability(peerChunks);
+		return peerChunks.cardinality();
+	}
+
+	public int transferHave(BitSet newChunks) throws IOException {
+		peerChunks.clear();
+		uploader.writeHave(newChunks);
+		downloader.readChunkAvailability(peerChunks);
+		return peerChunks.cardinality();
+	}
+
+	public void close() throws IOException {
+		downloader.close();
+		try {
+			uploadThread.join();
+		} catch(InterruptedException ie) {
+			ie.printStackTrace();
+		}
+		uploader.close();
+		chunks.close();
+		store.close();
+	}
+}
@@ -0,0 +1,22 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * A version 2 connection between an upload handler and a download handler.
+ * Chunk numbers start at 1, bit chunkNum-1 of a bitset stands for chunk chunkNum.
+ */
+public interface Link extends Closeable {
+	int getNumChunks();
+
+	// requests a chunk and stores the reply, returns the chunk size
+	int transferChunk(int chunkNum) throws IOException;
+
+	// sends chunks as BITFIELD, returns the number of chunks read back
+	int transferChunkList(BitSet chunks) throws IOException;
+
+	// sends chunks as HAVE, returns the number of chunks read back
+	int transferHave(BitSet chunks) throws IOException;
+}
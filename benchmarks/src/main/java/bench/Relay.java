@@ -0,0 +1,407 @@
+package bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A network link between loopback ports: forwards every connection made to
+ * its port to the target port, delivering the bytes of each direction
+ * latency ms after they were read, at no more than bandwidth bytes per
+ * second (0 for no limit). Counts the bytes each way. Relays run on a
+ * RelayLoop, many to a thread.
+ */
+class Relay {
+	// bytes a direction holds in flight without a bandwidth limit, like a TCP window
+	static final int WINDOW = 1024 * 1024;
+
+	final InetSocketAddress target;
+	final long latency;
+	final long bandwidth;
+	// bytes from the connecting side to the target, and back
+	final AtomicLong toTarget = new AtomicLong();
+	final AtomicLong fromTarget = new AtomicLong();
+	private ServerSocketChannel listener;
+
+	public Relay(int targetPort, long latency, long bandwidth) throws IOException {
+		this.target = new InetSocketAddress(InetAddress.getLoopbackAddress(), targetPort);
+		this.latency = latency;
+		this.bandwidth = bandwidth;
+		listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		listener.configureBlocking(false);
+	}
+
+	public int getPort() {
+		return listener.socket().getLocalPort();
+	}
+
+	ServerSocketChannel getListener() {
+		return listener;
+	}
+}
+
+/**
+ * Moves the bytes of the connections of its relays on one selector thread.
+ * Bytes read from one side wait in a queue until they are due on the
+ * other; a side is not read while its queue is full, so a slow link slows
+ * the sender down through TCP the way a real one would.
+ *
+ * A connection is accepted before the relay knows whether its target is
+ * listening, so instead of resetting it the relay tries the target again
+ * every CONNECT_RETRY_DELAY ms, for up to CONNECT_TIMEOUT ms, like TCP
+ * sending its SYN again. The client sees a slow connection, not an error.
+ */
+class RelayLoop extends Thread {
+	private static final int READ_SIZE = 65536;
+	private static final long CONNECT_RETRY_DELAY = 100;
+	private static final long CONNECT_TIMEOUT = 30000;
+
+	private Selector selector;
+	private volatile boolean isRunning = true;
+	// sessions with bytes due or a connection to try at a later time, by that time
+	private PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+	private static class Timer implements Comparable<Timer> {
+		private Session session;
+		private long dueAt;
+
+		public Timer(Session session, long dueAt) {
+			this.session = session;
+			this.dueAt = dueAt;
+		}
+
+		public int compareTo(Timer other) {
+			return Long.compare(dueAt, other.dueAt);
+		}
+	}
+
+	private static class Packet {
+		private ByteBuffer data;
+		// ns when it arrives at the other side
+		private long dueAt;
+
+		public Packet(ByteBuffer data, long dueAt) {
+			this.data = data;
+			this.dueAt = dueAt;
+		}
+	}
+
+	public RelayLoop(int loopId) throws IOException {
+		super("RelayLoop-" + loopId);
+		setDaemon(true);
+		this.selector = Selector.open();
+	}
+
+	// called before the loop starts
+	public void add(Relay relay) throws IOException {
+		relay.getListener().register(selector, SelectionKey.OP_ACCEPT, relay);
+	}
+
+	// closes all relays and their connections
+	public void shutdown() throws InterruptedException {
+		isRunning = false;
+		selector.wakeup();
+		join();
+	}
+
+	public void run() {
+		try {
+			while(isRunning) {
+				selector.select(getSelectTimeout());
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handleKey(key);
+				}
+				long now = System.nanoTime();
+				while(!timers.isEmpty() && timers.peek().dueAt <= now) {
+					timers.poll().session.due(now);
+				}
+			}
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		} finally {
+			for(SelectionKey key: selector.keys()) {
+				try {
+					key.channel().close();
+				} catch(IOException ie) {
+					ie.printStackTrace();
+				}
+			}
+			try {
+				selector.close();
+			} catch(IOException ie) {
+				ie.printStackTrace();
+			}
+		}
+	}
+
+	private long getSelectTimeout() {
+		if(timers.isEmpty()) {
+			return 0;
+		}
+		return Math.max(1, (timers.peek().dueAt - System.nanoTime() + 999999) / 1000000);
+	}
+
+	private void handleKey(SelectionKey key) {
+		if(!key.isValid()) {
+			return;
+		}
+		if(key.isAcceptable()) {
+			accept((Relay) key.attachment());
+			return;
+		}
+		Session session = (Session) key.attachment();
+		try {
+			if(key.isConnectable()) {
+				session.finishConnect();
+				return;
+			}
+			if(key.isReadable()) {
+				session.read((SocketChannel) key.channel());
+			}
+			if(key.isValid() && key.isWritable()) {
+				session.flush((SocketChannel) key.channel(), System.nanoTime());
+			}
+		} catch(IOException ie) {
+			// either side went away, so does the other
+			session.close();
+		}
+	}
+
+	private void accept(Relay relay) {
+		try {
+			SocketChannel client = relay.getListener().accept();
+			if(null != client) {
+				client.configureBlocking(false);
+				new Session(relay, client).connect();
+			}
+		} catch(IOException ie) {
+			ie.printStackTrace();
+		}
+	}
+
+	// bytes going one way through a session
+	private class Pipe {
+		private Session session;
+		private SocketChannel from;
+		private SocketChannel to;
+		private AtomicLong counter;
+		private Deque<Packet> packets = new ArrayDeque<Packet>();
+		private long queued;
+		private long limit;
+		// ns when the link is done sending what was read so far, with a bandwidth limit
+		private long sentUntil;
+		private boolean isEof;
+		private boolean isShutdown;
+
+		public Pipe(Session session, SocketChannel from, SocketChannel to, AtomicLong counter) {
+			this.session = session;
+			this.from = from;
+			this.to = to;
+			this.counter = counter;
+			Relay relay = session.relay;
+			// enough to keep the link busy for a round trip, the rest waits in the sender's socket
+			this.limit = 0 < relay.bandwidth ? relay.bandwidth * relay.latency / 1000 + 2 * READ_SIZE : Relay.WINDOW;
+		}
+
+		public boolean isReadable() {
+			return !isEof && queued < limit;
+		}
+
+		public void read() throws IOException {
+			ByteBuffer data = ByteBuffer.allocate(READ_SIZE);
+			int n = from.read(data);
+			if(n < 0) {
+				isEof = true;
+				// passed on once what is queued went out
+				timers.add(new Timer(session, System.nanoTime()));
+			} else if(0 < n) {
+				counter.addAndGet(n);
+				data.flip();
+				long now = System.nanoTime();
+				long sentAt = now;
+				if(0 < session.relay.bandwidth) {
+					sentAt = Math.max(now, sentUntil) + n * 1000000000L / session.relay.bandwidth;
+					sentUntil = sentAt;
+				}
+				Packet packet = new Packet(data, sentAt + session.relay.latency * 1000000);
+				packets.add(packet);
+				queued += n;
+				if(1 == packets.size()) {
+					timers.add(new Timer(session, packet.dueAt));
+				}
+			}
+		}
+
+		// writes what is due, returns false while the other side does not take it
+		public boolean flush(long now) throws IOException {
+			while(!packets.isEmpty() && packets.peek().dueAt <= now) {
+				Packet packet = packets.peek();
+				to.write(packet.data);
+				if(packet.data.hasRemaining()) {
+					return false;
+				}
+				packets.poll();
+				queued -= packet.data.limit();
+				if(!packets.isEmpty()) {
+					timers.add(new Timer(session, packets.peek().dueAt));
+				}
+			}
+			if(packets.isEmpty() && isEof && !isShutdown) {
+				to.shutdownOutput();
+				isShutdown = true;
+			}
+			return true;
+		}
+
+		public boolean isDone() {
+			return isShutdown;
+		}
+	}
+
+	// a connection to a relay and the relay's connection to its target
+	private class Session {
+		private Relay relay;
+		private SocketChannel client;
+		private SocketChannel server;
+		private SelectionKey clientKey;
+		private SelectionKey serverKey;
+		private Pipe toTarget;
+		private Pipe fromTarget;
+		// the pipes that could not write all that is due
+		private boolean isToTargetBlocked;
+		private boolean isFromTargetBlocked;
+		// ns after which the target is not tried again
+		private long connectDeadline;
+		private boolean isClosed;
+
+		public Session(Relay relay, SocketChannel client) {
+			this.relay = relay;
+			this.client = client;
+			this.connectDeadline = System.nanoTime() + CONNECT_TIMEOUT * 1000000;
+		}
+
+		// the client's bytes wait in its socket until the target is connected
+		public void connect() {
+			try {
+				server = SocketChannel.open();
+				server.configureBlocking(false);
+				serverKey = null;
+				if(server.connect(relay.target)) {
+					connected();
+				} else {
+					serverKey = server.register(selector, SelectionKey.OP_CONNECT, this);
+				}
+			} catch(IOException ie) {
+				retryConnect();
+			}
+		}
+
+		public void finishConnect() {
+			try {
+				server.finishConnect();
+				connected();
+			} catch(IOException ie) {
+				retryConnect();
+			}
+		}
+
+		private void retryConnect() {
+			try {
+				server.close();
+			} catch(IOException ie) {
+				ie.printStackTrace();
+			}
+			long now = System.nanoTime();
+			if(now > connectDeadline) {
+				close();
+			} else {
+				timers.add(new Timer(this, now + CONNECT_RETRY_DELAY * 1000000));
+			}
+		}
+
+		private void connected() throws IOException {
+			toTarget = new Pipe(this, client, server, relay.toTarget);
+			fromTarget = new Pipe(this, server, client, relay.fromTarget);
+			clientKey = client.register(selector, SelectionKey.OP_READ, this);
+			if(null == serverKey) {
+				serverKey = server.register(selector, SelectionKey.OP_READ, this);
+			}
+			updateInterest();
+		}
+
+		// bytes are due, or the target is to be tried again
+		public void due(long now) {
+			if(null == toTarget) {
+				if(!isClosed) {
+					connect();
+				}
+			} else {
+				flush(null, now);
+			}
+		}
+
+		public void read(SocketChannel channel) throws IOException {
+			(client == channel ? toTarget : fromTarget).read();
+			updateInterest();
+		}
+
+		// writes what is due on channel, or on both channels if channel is null
+		public void flush(SocketChannel channel, long now) {
+			if(isClosed) {
+				return;
+			}
+			try {
+				if(null == channel || server == channel) {
+					isToTargetBlocked = !toTarget.flush(now);
+				}
+				if(null == channel || client == channel) {
+					isFromTargetBlocked = !fromTarget.flush(now);
+				}
+				if(toTarget.isDone() && fromTarget.isDone()) {
+					close();
+					return;
+				}
+				updateInterest();
+			} catch(IOException ie) {
+				close();
+			}
+		}
+
+		private void updateInterest() {
+			if(isClosed || null == clientKey) {
+				return;
+			}
+			clientKey.interestOps((toTarget.isReadable() ? SelectionKey.OP_READ : 0) | (isFromTargetBlocked ? SelectionKey.OP_WRITE : 0));
+			serverKey.interestOps((fromTarget.isReadable() ? SelectionKey.OP_READ : 0) | (isToTargetBlocked ? SelectionKey.OP_WRITE : 0));
+		}
+
+		public void close() {
+			if(isClosed) {
+				return;
+			}
+			isClosed = true;
+			try {
+				client.close();
+				if(null != server) {
+					server.close();
+				}
+			} catch(IOException ie) {
+				ie.printStackTrace();
+			}
+		}
+	}
+}
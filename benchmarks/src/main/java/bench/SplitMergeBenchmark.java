@@ -0,0 +1,65 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting a file into part files on the server (SERVING_MODE=SPLIT) and
+ * merging them on the client (STORAGE_MODE=PARTS), time per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SplitMergeBenchmark {
+	@Param({"16384", "102400", "1048576", "4194304"})
+	public int chunkSize;
+
+	@Param({"64"})
+	public int fileSizeMB;
+
+	private Hooks hooks = Hooks.load();
+	private File dir;
+	private File file;
+	private List<File> partFiles;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = TestFiles.createTempDir();
+		// part files go next to the file, the merged file to ../completed
+		file = TestFiles.createRandomFile(new File(dir, "part"), "file.bin", (long) fileSizeMB * TestFiles.MB);
+		partFiles = hooks.splitFileIntoChunks(file, chunkSize);
+	}
+
+	@TearDown
+	public void tearDown() {
+		TestFiles.delete(dir);
+	}
+
+	@Benchmark
+	public List<File> split() {
+		return hooks.splitFileIntoChunks(file, chunkSize);
+	}
+
+	@Benchmark
+	public File merge() {
+		return hooks.mergeFiles(partFiles);
+	}
+}
@@ -0,0 +1,204 @@
+package bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A server distributing a generated file to peers on loopback, time until
+ * every peer has it. Server and peers run as "java Server" and "java
+ * Client" in a directory of their own with generated config files: they
+ * read their config from the working directory and keep it in statics, so
+ * they cannot share one JVM. Peers download from the next
+ * NUM_DOWNLOAD_NEIGHBORS peers in peers.cfg, round the ring. The time
+ * includes starting the peer JVMs, but not the server and its indexing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SwarmBenchmark {
+	static final String FILE_NAME = "swarm.bin";
+	static final long STARTUP_TIMEOUT = 30000;
+
+	@Param({"102400", "1048576"})
+	public int chunkSize;
+
+	@Param({"32"})
+	public int fileSizeMB;
+
+	@Param({"5", "10"})
+	public int numPeers;
+
+	@Param({"3"})
+	public int numDownloadNeighbors;
+
+	private File file;
+	private File dir;
+	private Process server;
+
+	@Setup(Level.Trial)
+	public void createFile() throws IOException {
+		file = TestFiles.createRandomFile(TestFiles.createTempDir(), FILE_NAME, (long) fileSizeMB * TestFiles.MB);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() {
+		TestFiles.delete(file.getParentFile());
+	}
+
+	// a new server for every run, so the peers get client ids 1 to numPeers
+	@Setup(Level.Invocation)
+	public void startServer() throws IOException, InterruptedException {
+		dir = TestFiles.createTempDir();
+		int[] ports = getFreePorts(numPeers + 1);
+		writeConfig(ports);
+		server = start("Server", "server.log");
+		awaitServer(server, ports[0], dir);
+	}
+
+	@TearDown(Level.Invocation)
+	public void stopServer() throws InterruptedException {
+		server.destroy();
+		server.waitFor();
+		for(int clientId=1; clientId<=numPeers; clientId++) {
+			// where a DIRECT client puts it, see ClientUtility.createChunkStore
+			File completed = new File(new File(new File(dir, "data\\"), "Client" + clientId + "\\completed"), FILE_NAME);
+			if(completed.length() != file.length()) {
+				throw new IllegalStateException("Client " + clientId + " did not complete, see " + dir);
+			}
+		}
+		TestFiles.delete(dir);
+	}
+
+	@Benchmark
+	public void distribute() throws IOException, InterruptedException {
+		List<Process> peers = new ArrayList<Process>();
+		for(int i=1; i<=numPeers; i++) {
+			peers.add(start("Client", "client" + i + ".log"));
+		}
+		for(Process peer: peers) {
+			peer.waitFor();
+		}
+	}
+
+	private void writeConfig(int[] ports) throws IOException {
+		File files = new File(dir, "files");
+		files.mkdirs();
+		Files.createLink(new File(files, FILE_NAME).toPath(), file.toPath());
+
+		// the client reads the server port from the first line
+		PrintWriter out = new PrintWriter(new FileWriter(new File(dir, "server.cfg")));
+		out.println("PORT=" + ports[0]);
+		out.println("NUM_CLIENTS=" + numPeers);
+		out.println("FILE_LOC=files");
+		out.println("DEFAULT_FILE=" + FILE_NAME);
+		out.println("CHUNK_SIZE=" + chunkSize);
+		out.close();
+
+		out = new PrintWriter(new FileWriter(new File(dir, "client.cfg")));
+		out.println("NUM_DOWNLOAD_NEIGHBORS=" + Math.min(numDownloadNeighbors, numPeers - 1));
+		out.close();
+
+		out = new PrintWriter(new FileWriter(new File(dir, "peers.cfg")));
+		out.println("//PeerId,PeerListeningPort,DownloadNeighborListeningPorts...");
+		for(int i=1; i<=numPeers; i++) {
+			StringBuilder line = new StringBuilder(i + "," + ports[i]);
+			for(int j=1; j<numPeers; j++) {
+				line.append(',').append(ports[(i - 1 + j) % numPeers + 1]);
+			}
+			out.println(line);
+		}
+		out.close();
+	}
+
+	private Process start(String mainClass, String log) throws IOException {
+		ProcessBuilder builder = newJava(dir, Collections.<String>emptyList(), mainClass);
+		builder.redirectOutput(new File(dir, log));
+		return builder.start();
+	}
+
+	// "java" with this JVM's class path in dir, options before mainClass, args after it
+	static ProcessBuilder newJava(File dir, List<String> options, String mainClass, String... args) {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(options);
+		// the peers run in another directory, so the class path must not be relative
+		StringBuilder classPath = new StringBuilder();
+		for(String entry: System.getProperty("java.class.path").split(File.pathSeparator)) {
+			classPath.append(new File(entry).getAbsolutePath()).append(File.pathSeparator);
+		}
+		command.add("-cp");
+		command.add(classPath.toString());
+		command.add(mainClass);
+		command.addAll(Arrays.asList(args));
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.directory(dir);
+		builder.redirectErrorStream(true);
+		return builder;
+	}
+
+	// a connection closed before HELLO does not take a client id
+	static void awaitServer(Process server, int port, File dir) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while(true) {
+			Socket probe = new Socket();
+			try {
+				probe.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+				return;
+			} catch(IOException ie) {
+				if(System.currentTimeMillis() > deadline || !server.isAlive()) {
+					throw new IOException("Server did not start, see " + dir, ie);
+				}
+				Thread.sleep(50);
+			} finally {
+				probe.close();
+			}
+		}
+	}
+
+	static int[] getFreePorts(int count) throws IOException {
+		ServerSocket[] sockets = new ServerSocket[count];
+		int[] ports = new int[count];
+		try {
+			for(int i=0; i<count; i++) {
+				sockets[i] = new ServerSocket(0);
+				ports[i] = sockets[i].getLocalPort();
+			}
+		} finally {
+			for(ServerSocket socket: sockets) {
+				if(null != socket) {
+					socket.close();
+				}
+			}
+		}
+		return ports;
+	}
+}
@@ -0,0 +1,556 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server distributing a generated file to a swarm of peers on loopback,
+ * over links with the latency, bandwidth and churn asked for, and a report
+ * of how it went: when each peer completed, the bytes moved from the
+ * server and between peers, and the throughput over time. Run it from the
+ * benchmarks directory after "mvn package" as
+ *
+ *	java -cp target/benchmarks.jar bench.SwarmSimulator peers=50 fileSizeMB=64 latency=20 bandwidth=1048576
+ *
+ * Parameters are name=value, see DEFAULTS:
+ *	- peers, fileSizeMB, chunkSize : the swarm and its file, chunkSize may be AUTO
+ *	- topology, neighbors : ring downloads from the next neighbors peers in
+ *	  client id order, random from neighbors peers picked at random
+ *	- latency, bandwidth : ms each way and bytes per second each way of the
+ *	  links between peers, 0 for none; min-max picks a value per link
+ *	- serverLatency, serverBandwidth : the same for the links to the server,
+ *	  default to those between peers
+ *	- churn, churnWindow, downtime : the share of peers killed at a random
+ *	  time within churnWindow ms, each started again downtime ms later with
+ *	  its client id, so it resumes its download. Peers that have no client
+ *	  id yet or are complete by then are spared
+ *	- interval, timeout : ms between throughput samples, ms until peers that
+ *	  did not complete are given up on
+ *	- seed : for the topology, link values and churn
+ *	- jvm : options of the server and peer JVMs, separated by spaces
+ *	- report : directory peers.csv and throughput.csv are written to
+ *	- keep : true keeps the working directory with configs and logs, it is
+ *	  also kept if a peer did not complete
+ *	- server.NAME, client.NAME : NAME=value added to server.cfg or client.cfg
+ *
+ * Server and peers are "java Server" and "java Client" processes, each in
+ * a directory of its own, as they keep their config in statics. Every
+ * connection goes through a Relay of its link, which adds latency and
+ * limits bandwidth and counts the bytes. Each peer's server.cfg points to
+ * its own relay to the server. In peers.cfg a peer's line lists the relays
+ * to its download neighbors, and every relay has a line of its own with
+ * the id of the peer behind it and that peer's port as its one neighbor,
+ * so peers still count their upload neighbors and name their download
+ * neighbors. Client ids are handed out by the server in the order peers
+ * connect, the topology is laid out by client id.
+ */
+public class SwarmSimulator {
+	static final String FILE_NAME = "swarm.bin";
+	static final String COMPLETE = "DOWNLOAD: File download complete";
+	static final String CLIENT_ID = "Client Id: ";
+	static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULTS.put("peers", "5");
+		DEFAULTS.put("fileSizeMB", "32");
+		DEFAULTS.put("chunkSize", "1048576");
+		DEFAULTS.put("topology", "ring");
+		DEFAULTS.put("neighbors", "3");
+		DEFAULTS.put("latency", "0");
+		DEFAULTS.put("bandwidth", "0");
+		DEFAULTS.put("serverLatency", null);
+		DEFAULTS.put("serverBandwidth", null);
+		DEFAULTS.put("churn", "0");
+		DEFAULTS.put("churnWindow", "10000");
+		DEFAULTS.put("downtime", "2000");
+		DEFAULTS.put("interval", "1000");
+		DEFAULTS.put("timeout", "600000");
+		DEFAULTS.put("seed", "1");
+		DEFAULTS.put("jvm", "");
+		DEFAULTS.put("report", "swarm-report");
+		DEFAULTS.put("keep", "false");
+	}
+
+	private Map<String, String> params;
+	private Random random;
+	private int numPeers;
+	private int numNeighbors;
+	private File dir;
+	private File file;
+	private Process server;
+	private List<Peer> peers = new ArrayList<Peer>();
+	// link from client id d to its download neighbor u in links[d][u], null if none
+	private Relay[][] links;
+	private List<RelayLoop> loops = new ArrayList<RelayLoop>();
+	private ScheduledExecutorService churner;
+	private long start;
+	// {ms since start, bytes sent by the server, bytes sent between peers, peers complete} per interval
+	private List<long[]> samples = new ArrayList<long[]>();
+
+	// a client process, started again after churn
+	private class Peer {
+		private int index;
+		private File dir;
+		private Relay serverLink;
+		private Process process;
+		private volatile int clientId;
+		// ms since start, -1 until complete
+		private volatile long completedAt = -1;
+		private volatile boolean isDown;
+		private int restarts;
+
+		public Peer(int index, File dir, Relay serverLink) {
+			this.index = index;
+			this.dir = dir;
+			this.serverLink = serverLink;
+		}
+
+		public synchronized void start(String... args) throws IOException {
+			process = SwarmBenchmark.newJava(dir, getJvmOptions(), "Client", args).start();
+			final Process started = process;
+			// timestamps the lines the report needs, the log is kept as printed
+			Thread pump = new Thread("Peer-" + index) {
+				public void run() {
+					pump(started);
+				}
+			};
+			pump.setDaemon(true);
+			pump.start();
+		}
+
+		private void pump(Process started) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(started.getInputStream()));
+				PrintWriter log = new PrintWriter(new FileWriter(new File(dir, "client.log"), true));
+				try {
+					String line;
+					while(null != (line = in.readLine())) {
+						log.println(line);
+						if(line.startsWith(CLIENT_ID)) {
+							clientId = Integer.parseInt(line.substring(CLIENT_ID.length()).trim());
+						} else if(line.startsWith(COMPLETE) && completedAt < 0) {
+							completedAt = System.currentTimeMillis() - start;
+						}
+					}
+				} finally {
+					log.close();
+				}
+			} catch(IOException ie) {
+				// killed, the log ends here
+			}
+		}
+
+		// kills the process like a crash, false if the peer is done already or has no client id yet
+		public synchronized boolean kill() throws InterruptedException {
+			if(0 <= completedAt || 0 == clientId || !process.isAlive()) {
+				return false;
+			}
+			isDown = true;
+			process.destroyForcibly().waitFor();
+			return true;
+		}
+
+		public synchronized void restart() throws IOException {
+			restarts++;
+			start(String.valueOf(clientId));
+			isDown = false;
+		}
+
+		// given up on: exited before completing, and not about to start again
+		public synchronized boolean isFailed() {
+			return completedAt < 0 && !isDown && !process.isAlive();
+		}
+
+		public synchronized void stop() throws InterruptedException {
+			process.destroy();
+			process.waitFor();
+		}
+
+		public long getFromPeers() {
+			long bytes = 0;
+			for(Relay link: getLinks(clientId, true)) {
+				bytes += link.fromTarget.get();
+			}
+			return bytes;
+		}
+
+		public long getUploaded() {
+			long bytes = 0;
+			for(Relay link: getLinks(clientId, false)) {
+				bytes += link.fromTarget.get();
+			}
+			return bytes;
+		}
+	}
+
+	public SwarmSimulator(Map<String, String> params) {
+		this.params = params;
+		this.random = new Random(getLong("seed"));
+		this.numPeers = getInt("peers");
+		this.numNeighbors = Math.min(getInt("neighbors"), numPeers - 1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> params = new LinkedHashMap<String, String>(DEFAULTS);
+		for(String arg: args) {
+			int equals = arg.indexOf('=');
+			String name = arg.substring(0, Math.max(0, equals));
+			if(!params.containsKey(name) && !name.startsWith("server.") && !name.startsWith("client.")) {
+				System.err.println("Unknown parameter " + arg + ", parameters and defaults are " + DEFAULTS);
+				System.exit(2);
+			}
+			params.put(name, arg.substring(equals + 1));
+		}
+		System.exit(new SwarmSimulator(params).run() ? 0 : 1);
+	}
+
+	// returns true if every peer completed
+	public boolean run() throws IOException, InterruptedException {
+		dir = TestFiles.createTempDir();
+		System.out.println("Working directory " + dir);
+		File serverDir = new File(dir, "server");
+		file = TestFiles.createRandomFile(new File(serverDir, "files"), FILE_NAME, getLong("fileSizeMB") * TestFiles.MB);
+		// the server's port and the peers' listening ports by client id
+		int[] ports = SwarmBenchmark.getFreePorts(numPeers + 1);
+		boolean isComplete = false;
+		try {
+			writeServerConfig(serverDir, ports[0]);
+			ProcessBuilder builder = SwarmBenchmark.newJava(serverDir, getJvmOptions(), "Server");
+			builder.redirectOutput(new File(serverDir, "server.log"));
+			server = builder.start();
+			SwarmBenchmark.awaitServer(server, ports[0], serverDir);
+
+			createLinks(ports);
+			for(RelayLoop loop: loops) {
+				loop.start();
+			}
+			start = System.currentTimeMillis();
+			for(Peer peer: peers) {
+				peer.start();
+			}
+			scheduleChurn();
+			isComplete = monitor();
+		} finally {
+			if(null != churner) {
+				churner.shutdownNow();
+			}
+			for(Peer peer: peers) {
+				if(null != peer.process) {
+					peer.stop();
+				}
+			}
+			if(null != server) {
+				server.destroy();
+				server.waitFor();
+			}
+			for(RelayLoop loop: loops) {
+				loop.shutdown();
+			}
+		}
+		report();
+		if(isComplete && !Boolean.parseBoolean(params.get("keep"))) {
+			TestFiles.delete(dir);
+		} else {
+			System.out.println("Configs and logs are in " + dir);
+		}
+		return isComplete;
+	}
+
+	private void writeServerConfig(File serverDir, int port) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(new File(serverDir, "server.cfg")));
+		// the client reads the server port from the first line
+		out.println("PORT=" + port);
+		out.println("NUM_CLIENTS=" + numPeers);
+		out.println("FILE_LOC=files");
+		out.println("DEFAULT_FILE=" + FILE_NAME);
+		out.println("CHUNK_SIZE=" + params.get("chunkSize"));
+		writeExtras(out, "server.");
+		out.close();
+	}
+
+	// relays for every link, then the peer directories with configs pointing to them
+	private void createLinks(int[] ports) throws IOException {
+		int numLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		for(int i=0; i<numLoops; i++) {
+			loops.add(new RelayLoop(i));
+		}
+		links = new Relay[numPeers + 1][numPeers + 1];
+		StringBuilder peerLines = new StringBuilder();
+		StringBuilder relayLines = new StringBuilder();
+		for(int clientId=1; clientId<=numPeers; clientId++) {
+			peerLines.append(clientId).append(',').append(ports[clientId]);
+			for(int neighborId: getNeighbors(clientId)) {
+				Relay link = newRelay(ports[neighborId], params.get("latency"), params.get("bandwidth"));
+				links[clientId][neighborId] = link;
+				peerLines.append(',').append(link.getPort());
+				relayLines.append(neighborId).append(',').append(link.getPort()).append(',').append(ports[neighborId]).append('\n');
+			}
+			peerLines.append('\n');
+		}
+		String peersConfig = "//PeerId,PeerListeningPort,DownloadNeighborListeningPorts...\n" + peerLines + relayLines;
+
+		for(int i=1; i<=numPeers; i++) {
+			File peerDir = new File(dir, "peer" + i);
+			peerDir.mkdirs();
+			Relay serverLink = newRelay(ports[0], getParam("serverLatency", "latency"), getParam("serverBandwidth", "bandwidth"));
+			PrintWriter out = new PrintWriter(new FileWriter(new File(peerDir, "server.cfg")));
+			out.println("PORT=" + serverLink.getPort());
+			out.close();
+			out = new PrintWriter(new FileWriter(new File(peerDir, "peers.cfg")));
+			out.print(peersConfig);
+			out.close();
+			out = new PrintWriter(new FileWriter(new File(peerDir, "client.cfg")));
+			out.println("NUM_DOWNLOAD_NEIGHBORS=" + numNeighbors);
+			writeExtras(out, "client.");
+			out.close();
+			peers.add(new Peer(i, peerDir, serverLink));
+		}
+	}
+
+	// download neighbors of a peer by client id
+	private List<Integer> getNeighbors(int clientId) {
+		List<Integer> neighbors = new ArrayList<Integer>();
+		if("random".equals(params.get("topology"))) {
+			for(int other=1; other<=numPeers; other++) {
+				if(clientId != other) {
+					neighbors.add(other);
+				}
+			}
+			Collections.shuffle(neighbors, random);
+			return neighbors.subList(0, numNeighbors);
+		}
+		for(int i=1; i<=numNeighbors; i++) {
+			neighbors.add((clientId - 1 + i) % numPeers + 1);
+		}
+		return neighbors;
+	}
+
+	private Relay newRelay(int targetPort, String latency, String bandwidth) throws IOException {
+		Relay relay = new Relay(targetPort, pick(latency), pick(bandwidth));
+		loops.get(random.nextInt(loops.size())).add(relay);
+		return relay;
+	}
+
+	// value, or one between min and max for min-max
+	private long pick(String value) {
+		int dash = value.indexOf('-');
+		if(dash < 0) {
+			return Long.parseLong(value);
+		}
+		long min = Long.parseLong(value.substring(0, dash));
+		long max = Long.parseLong(value.substring(dash + 1));
+		return min + (long) (random.nextDouble() * (max - min + 1));
+	}
+
+	private void scheduleChurn() {
+		int numChurned = (int) Math.round(Double.parseDouble(params.get("churn")) * numPeers);
+		if(0 == numChurned) {
+			return;
+		}
+		churner = Executors.newSingleThreadScheduledExecutor();
+		List<Peer> churned = new ArrayList<Peer>(peers);
+		Collections.shuffle(churned, random);
+		final long downtime = getLong("downtime");
+		for(final Peer peer: churned.subList(0, numChurned)) {
+			churner.schedule(new Runnable() {
+				public void run() {
+					try {
+						if(!peer.kill()) {
+							return;
+						}
+						System.out.println("Killed Client " + peer.clientId + " at " + (System.currentTimeMillis() - start) + " ms");
+						churner.schedule(new Runnable() {
+							public void run() {
+								try {
+									peer.restart();
+								} catch(IOException ie) {
+									ie.printStackTrace();
+								}
+							}
+						}, downtime, TimeUnit.MILLISECONDS);
+					} catch(InterruptedException ie) {
+						// shut down
+					}
+				}
+			}, (long) (random.nextDouble() * getLong("churnWindow")), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// samples throughput until every peer completed or failed, returns true if all completed
+	private boolean monitor() throws InterruptedException {
+		long interval = getLong("interval");
+		long deadline = start + getLong("timeout");
+		long lastServer = 0;
+		long lastPeers = 0;
+		while(true) {
+			Thread.sleep(interval);
+			long now = System.currentTimeMillis();
+			long serverBytes = getServerBytes();
+			long peerBytes = getPeerBytes();
+			int numComplete = 0;
+			int numFailed = 0;
+			for(Peer peer: peers) {
+				if(0 <= peer.completedAt) {
+					numComplete++;
+				} else if(peer.isFailed()) {
+					numFailed++;
+				}
+			}
+			samples.add(new long[] {now - start, serverBytes - lastServer, peerBytes - lastPeers, numComplete});
+			System.out.println(String.format("%7.1f s: server %6.1f MB/s, peers %6.1f MB/s, %d of %d complete",
+					(now - start) / 1000.0, toMBps(serverBytes - lastServer, interval), toMBps(peerBytes - lastPeers, interval), numComplete, numPeers));
+			lastServer = serverBytes;
+			lastPeers = peerBytes;
+			if(numPeers == numComplete) {
+				return true;
+			}
+			if(numPeers == numComplete + numFailed || now > deadline) {
+				return false;
+			}
+		}
+	}
+
+	private void report() throws IOException {
+		List<Long> times = new ArrayList<Long>();
+		int numRestarted = 0;
+		for(Peer peer: peers) {
+			if(0 <= peer.completedAt) {
+				times.add(peer.completedAt);
+			}
+			if(0 < peer.restarts) {
+				numRestarted++;
+			}
+		}
+		Collections.sort(times);
+		long serverBytes = getServerBytes();
+		long peerBytes = getPeerBytes();
+		long moved = 0;
+		for(Relay relay: getAllRelays()) {
+			moved += relay.toTarget.get() + relay.fromTarget.get();
+		}
+
+		System.out.println();
+		System.out.println(numPeers + " peers, " + params.get("topology") + " of " + numNeighbors + " neighbors, " + params.get("fileSizeMB") + " MB in chunks of " + params.get("chunkSize")
+				+ ", latency " + params.get("latency") + " ms, bandwidth " + params.get("bandwidth") + " B/s, churn " + params.get("churn"));
+		System.out.println("Completed " + times.size() + " of " + numPeers + " peers, " + numRestarted + " restarted");
+		if(!times.isEmpty()) {
+			System.out.println("Time to complete: first " + times.get(0) + " ms, p50 " + percentile(times, 50) + " ms, p90 " + percentile(times, 90) + " ms, last " + times.get(times.size() - 1) + " ms");
+		}
+		System.out.println(String.format("Moved %.1f MB: %.1f MB from the server, %.1f MB between peers, %.1f MB of requests and control",
+				toMB(moved), toMB(serverBytes), toMB(peerBytes), toMB(moved - serverBytes - peerBytes)));
+		if(0 < serverBytes + peerBytes) {
+			System.out.println(String.format("Server upload share %.1f%%, %.2f times the file per peer",
+					100.0 * serverBytes / (serverBytes + peerBytes), (double) (serverBytes + peerBytes) / file.length() / numPeers));
+		}
+
+		File reportDir = new File(params.get("report"));
+		reportDir.mkdirs();
+		PrintWriter out = new PrintWriter(new FileWriter(new File(reportDir, "peers.csv")));
+		out.println("peer,client_id,complete_ms,restarts,from_server_bytes,from_peers_bytes,uploaded_bytes");
+		for(Peer peer: peers) {
+			out.println(peer.index + "," + peer.clientId + "," + peer.completedAt + "," + peer.restarts + "," + peer.serverLink.fromTarget.get() + "," + peer.getFromPeers() + "," + peer.getUploaded());
+		}
+		out.close();
+		out = new PrintWriter(new FileWriter(new File(reportDir, "throughput.csv")));
+		out.println("ms,server_bytes,peer_bytes,complete");
+		for(long[] sample: samples) {
+			out.println(sample[0] + "," + sample[1] + "," + sample[2] + "," + sample[3]);
+		}
+		out.close();
+		System.out.println("Reports in " + reportDir.getAbsolutePath());
+	}
+
+	// links of a client id to its download neighbors, or from its upload neighbors
+	private List<Relay> getLinks(int clientId, boolean isDownload) {
+		List<Relay> relays = new ArrayList<Relay>();
+		if(0 == clientId) {
+			return relays;
+		}
+		for(int other=1; other<=numPeers; other++) {
+			Relay link = isDownload ? links[clientId][other] : links[other][clientId];
+			if(null != link) {
+				relays.add(link);
+			}
+		}
+		return relays;
+	}
+
+	private List<Relay> getAllRelays() {
+		List<Relay> relays = new ArrayList<Relay>();
+		for(Peer peer: peers) {
+			relays.add(peer.serverLink);
+		}
+		for(int clientId=1; clientId<=numPeers; clientId++) {
+			relays.addAll(getLinks(clientId, true));
+		}
+		return relays;
+	}
+
+	private long getServerBytes() {
+		long bytes = 0;
+		for(Peer peer: peers) {
+			bytes += peer.serverLink.fromTarget.get();
+		}
+		return bytes;
+	}
+
+	private long getPeerBytes() {
+		long bytes = 0;
+		for(int clientId=1; clientId<=numPeers; clientId++) {
+			for(Relay link: getLinks(clientId, true)) {
+				bytes += link.fromTarget.get();
+			}
+		}
+		return bytes;
+	}
+
+	private void writeExtras(PrintWriter out, String prefix) {
+		for(Map.Entry<String, String> param: params.entrySet()) {
+			if(param.getKey().startsWith(prefix)) {
+				out.println(param.getKey().substring(prefix.length()) + "=" + param.getValue());
+			}
+		}
+	}
+
+	private List<String> getJvmOptions() {
+		String jvm = params.get("jvm").trim();
+		return jvm.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(jvm.split(" +"));
+	}
+
+	private String getParam(String name, String fallback) {
+		return null == params.get(name) ? params.get(fallback) : params.get(name);
+	}
+
+	private int getInt(String name) {
+		return Integer.parseInt(params.get(name));
+	}
+
+	private long getLong(String name) {
+		return Long.parseLong(params.get(name));
+	}
+
+	private static long percentile(List<Long> sorted, int percent) {
+		return sorted.get(Math.max(0, (sorted.size() * percent + 99) / 100 - 1));
+	}
+
+	private static double toMB(long bytes) {
+		return bytes / (double) TestFiles.MB;
+	}
+
+	private static double toMBps(long bytes, long ms) {
+		return toMB(bytes) * 1000 / ms;
+	}
+}
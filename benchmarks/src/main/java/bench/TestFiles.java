@@ -0,0 +1,58 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+// files the benchmarks work on, all in temporary directories
+class TestFiles {
+	static final int MB = 1024 * 1024;
+
+	public static File createTempDir() throws IOException {
+		return Files.createTempDirectory("p2p-bench").toFile();
+	}
+
+	// random bytes, which do not compress, like the PDF in data/Server
+	public static File createRandomFile(File dir, String name, long size) throws IOException {
+		dir.mkdirs();
+		File file = new File(dir, name);
+		Random random = new Random(size);
+		byte[] buffer = new byte[MB];
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for(long left = size; 0 < left; left -= buffer.length) {
+				random.nextBytes(buffer);
+				out.write(buffer, 0, (int) Math.min(left, buffer.length));
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	// a file of size bytes with nothing written, for benchmarks that never read it
+	public static File createEmptyFile(File dir, String name, long size) throws IOException {
+		dir.mkdirs();
+		File file = new File(dir, name);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+		} finally {
+			raf.close();
+		}
+		return file;
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if(null != children) {
+			for(File child: children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,125 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chunks going from an upload handler to a download handler over a
+ * loopback socket, one request at a time. file is the time to move the
+ * whole file chunk by chunk, so chunk sizes compare directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+	@Param({"16384", "102400", "1048576", "4194304"})
+	public int chunkSize;
+
+	@Param({"64"})
+	public int fileSizeMB;
+
+	private File dir;
+	private Link link;
+
+	@Setup
+	public void setUp() throws IOException {
+		dir = TestFiles.createTempDir();
+		File file = TestFiles.createRandomFile(dir, "file.bin", (long) fileSizeMB * TestFiles.MB);
+		link = Hooks.load().openLink(file, chunkSize, new File(dir, "received.bin"));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		link.close();
+		TestFiles.delete(dir);
+	}
+
+	@Benchmark
+	public long file() throws IOException {
+		long size = 0;
+		for(int chunkNum=1; chunkNum<=link.getNumChunks(); chunkNum++) {
+			size += link.transferChunk(chunkNum);
+		}
+		return size;
+	}
+
+	/**
+	 * Encoding and decoding of chunk lists: the BITFIELD answering
+	 * REQ_FOR_CHUNK_LIST, here with a random half of the chunks, and a HAVE
+	 * of HAVE_CHUNKS chunks as pushed between chunk replies. Time per list.
+	 */
+	@State(Scope.Benchmark)
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	@Fork(1)
+	public static class ChunkList {
+		static final int HAVE_CHUNKS = 16;
+
+		@Param({"16384", "102400", "1048576", "4194304"})
+		public int chunkSize;
+
+		@Param({"1024"})
+		public int fileSizeMB;
+
+		private File dir;
+		private Link link;
+		private BitSet bitfield = new BitSet();
+		private BitSet have = new BitSet();
+
+		@Setup
+		public void setUp() throws IOException {
+			dir = TestFiles.createTempDir();
+			// chunk lists only depend on the number of chunks, the file is never read
+			File file = TestFiles.createEmptyFile(dir, "file.bin", (long) fileSizeMB * TestFiles.MB);
+			link = Hooks.load().openLink(file, chunkSize, new File(dir, "received.bin"));
+
+			Random random = new Random(chunkSize);
+			int numChunks = link.getNumChunks();
+			for(int i=0; i<numChunks; i++) {
+				if(random.nextBoolean()) {
+					bitfield.set(i);
+				}
+			}
+			while(have.cardinality() < Math.min(HAVE_CHUNKS, numChunks)) {
+				have.set(random.nextInt(numChunks));
+			}
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			link.close();
+			TestFiles.delete(dir);
+		}
+
+		@Benchmark
+		public int bitfield() throws IOException {
+			return link.transferChunkList(bitfield);
+		}
+
+		@Benchmark
+		public int have() throws IOException {
+			return link.transferHave(have);
+		}
+	}
+}